@@ -1,5 +1,7 @@
 package lab6_1;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
@@ -12,8 +14,11 @@ public class ChatClient {
 
     public ChatClient(String ip, int port) throws Exception {
         socket = new Socket(ip, port);
-        socketOut = new ObjectOutputStream(socket.getOutputStream());
-        socketIn = new ObjectInputStream(socket.getInputStream());
+        socketOut = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        // the stream header has to reach the server before either side can
+        // open its input stream
+        socketOut.flush();
+        socketIn = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
     }
 
     // start a thread to listen for messages from the server
@@ -23,7 +28,7 @@ public class ChatClient {
 
     private void sendMessage(Message m) throws Exception {
         socketOut.writeObject(m);
-        // socketOut.flush();
+        socketOut.flush();
     }
 
     private void mainLoop(Scanner in) throws Exception {
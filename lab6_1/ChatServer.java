@@ -1,5 +1,7 @@
 package lab6_1;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -32,8 +34,10 @@ public class ChatServer {
                             socket.getPort(), socket.getLocalPort());
 
                     // This code should really be done in the separate thread
-                    ObjectOutputStream socketOut = new ObjectOutputStream(socket.getOutputStream());
-                    ObjectInputStream socketIn = new ObjectInputStream(socket.getInputStream());
+                    ObjectOutputStream socketOut = new ObjectOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream()));
+                    socketOut.flush();
+                    ObjectInputStream socketIn = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
                     String name = socket.getInetAddress().getHostName();
 
                     ClientConnectionData client = new ClientConnectionData(socket, socketIn, socketOut, name);
@@ -39,6 +39,7 @@ public class ChatServerSocketListener implements Runnable {
             if (client.getUserName().equals(m.username)) {
                 try {
                     client.getOut().writeObject(new MessageStoC_Kick());
+                    client.getOut().flush();
                     client.getSocket().close();
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -53,6 +54,7 @@ public class ChatServerSocketListener implements Runnable {
     public void individualSend(Message m, ClientConnectionData client) {
         try {
             client.getOut().writeObject(m);
+            client.getOut().flush();
         } catch (IOException ex) {
             System.out.println(ex);
         }
@@ -69,6 +71,7 @@ public class ChatServerSocketListener implements Runnable {
                 // or if c hasn't set a userName yet (still joining the server)
                 if ((c != skipClient) && (c.getUserName() != null)) {
                     c.getOut().writeObject(m);
+                    c.getOut().flush();
                 }
             }
         } catch (Exception ex) {
@@ -0,0 +1,15 @@
+#!/bin/sh
+# Builds the server and the benchmarks, then runs the benchmarks with the GC
+# profiler and saves the results as results/<commit>.json, so runs on
+# different commits can be compared. Extra arguments go to JMH, e.g.
+#   ./run.sh Broadcast -p clients=1000
+set -e
+cd "$(dirname "$0")"
+(cd .. && mvn -B -q install -DskipTests)
+mvn -B -q package
+commit=$(git rev-parse --short HEAD)
+if [ -n "$(git status --porcelain -- ../src)" ]; then
+    commit="$commit-dirty"
+fi
+mkdir -p results
+java -jar target/benchmarks.jar -prof gc -rf json -rff "results/$commit.json" "$@"
@@ -0,0 +1,68 @@
+package sockets.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sockets.ChatServerSocketListener;
+import sockets.ClientRegistry;
+import sockets.Frame;
+import sockets.MessageStoC_Chat;
+import sockets.RoomRegistry;
+
+/**
+ * Fans one chat message out to every joined client. {@code listener} goes
+ * through {@link ChatServerSocketListener#broadcast}, including its sampled
+ * debug logging at the default level; {@code registry} encodes the frame
+ * and hands it to {@link ClientRegistry#broadcast} directly.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+    @Param({ "10", "1000", "10000" })
+    public int clients;
+
+    /**
+     * true to push every frame through the client's outbound queue, false to
+     * only count it.
+     */
+    @Param({ "false", "true" })
+    public boolean queue;
+
+    private ClientRegistry registry;
+    private ChatServerSocketListener listener;
+    private MessageStoC_Chat chat;
+
+    @Setup
+    public void setup() {
+        registry = new ClientRegistry();
+        Sink[] sinks = Clients.join(registry, clients, queue);
+        listener = new ChatServerSocketListener(sinks[0], registry, new RoomRegistry(1));
+        chat = new MessageStoC_Chat("user0", null, "hello everyone, how is it going today?", "lobby");
+    }
+
+    @Benchmark
+    public void listener() {
+        listener.broadcast(chat, null);
+    }
+
+    @Benchmark
+    public void registry() throws IOException {
+        registry.broadcast(Frame.of(chat), null);
+    }
+}
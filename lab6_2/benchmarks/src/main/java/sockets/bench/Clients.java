@@ -0,0 +1,25 @@
+package sockets.bench;
+
+import sockets.ClientRegistry;
+import sockets.ServerConfig;
+
+/**
+ * Builds registries full of joined in-memory clients.
+ */
+public class Clients {
+    public static final ServerConfig CONFIG = ServerConfig.parse(new String[0]);
+
+    public static String userName(int i) {
+        return "user" + i;
+    }
+
+    public static Sink[] join(ClientRegistry clients, int count, boolean queue) {
+        Sink[] sinks = new Sink[count];
+        for (int i = 0; i < count; i++) {
+            sinks[i] = new Sink(CONFIG, queue);
+            clients.add(sinks[i]);
+            clients.join(sinks[i], userName(i));
+        }
+        return sinks;
+    }
+}
@@ -0,0 +1,155 @@
+package sockets.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sockets.*;
+
+/**
+ * Encodes and decodes one message of each type, with the wire codec and with
+ * the Java serialization the protocol used before it.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({ "CtoS_Join", "CtoS_Chat", "CtoS_List", "CtoS_Kick", "CtoS_Quit", "CtoS_JoinRoom",
+            "CtoS_LeaveRoom", "CtoS_ListRooms", "CtoS_Search", "StoC_Welcome", "StoC_Chat", "StoC_List",
+            "StoC_Kick", "StoC_Exit", "StoC_Denied", "StoC_Presence", "StoC_Room", "StoC_RoomList",
+            "StoC_History", "StoC_SearchResult", "StoS_Hello", "StoS_Envelope" })
+    public String type;
+
+    private Message message;
+    private byte[] frame;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        message = sample(type);
+        frame = MessageFrames.encodeFrame(message);
+        serialized = serialize(message);
+    }
+
+    @Benchmark
+    public byte[] codecEncode() throws IOException {
+        return MessageFrames.encodeFrame(message);
+    }
+
+    @Benchmark
+    public Message codecDecode() throws IOException {
+        return MessageFrames.decode(frame, MessageFrames.HEADER_LENGTH, frame.length - MessageFrames.HEADER_LENGTH);
+    }
+
+    @Benchmark
+    public byte[] serializationEncode() throws IOException {
+        return serialize(message);
+    }
+
+    @Benchmark
+    public Object serializationDecode() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return in.readObject();
+        }
+    }
+
+    private static byte[] serialize(Message m) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(m);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static MessageStoC_Chat chat() {
+        return new MessageStoC_Chat("alice", null, "hello everyone, how is it going today?", "lobby");
+    }
+
+    private static ArrayList<MessageStoC_Chat> chats(int count) {
+        ArrayList<MessageStoC_Chat> chats = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            chats.add(chat());
+        }
+        return chats;
+    }
+
+    static Message sample(String type) {
+        switch (type) {
+            case "CtoS_Join":
+                return new MessageCtoS_Join("alice");
+            case "CtoS_Chat":
+                return new MessageCtoS_Chat("alice", null, "hello everyone, how is it going today?", "lobby");
+            case "CtoS_List":
+                return new MessageCtoS_List();
+            case "CtoS_Kick":
+                return new MessageCtoS_Kick("admin", "alice");
+            case "CtoS_Quit":
+                return new MessageCtoS_Quit();
+            case "CtoS_JoinRoom":
+                return new MessageCtoS_JoinRoom("general");
+            case "CtoS_LeaveRoom":
+                return new MessageCtoS_LeaveRoom("general");
+            case "CtoS_ListRooms":
+                return new MessageCtoS_ListRooms();
+            case "CtoS_Search":
+                return new MessageCtoS_Search("hello world", "alice", 0, Long.MAX_VALUE, 0, 20);
+            case "StoC_Welcome":
+                return new MessageStoC_Welcome("alice");
+            case "StoC_Chat":
+                return chat();
+            case "StoC_List":
+                ArrayList<String> users = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    users.add(Clients.userName(i));
+                }
+                return new MessageStoC_List(1, users);
+            case "StoC_Kick":
+                return new MessageStoC_Kick("admin", "alice");
+            case "StoC_Exit":
+                return new MessageStoC_Exit("alice");
+            case "StoC_Denied":
+                return new MessageStoC_Denied("Name already in use");
+            case "StoC_Presence":
+                return new MessageStoC_Presence(42, "alice", true);
+            case "StoC_Room":
+                return new MessageStoC_Room("general", "alice", true);
+            case "StoC_RoomList":
+                return new MessageStoC_RoomList(new ArrayList<>(Arrays.asList("lobby", "general", "random")),
+                        new ArrayList<>(Arrays.asList(100, 20, 5)));
+            case "StoC_History":
+                return new MessageStoC_History("lobby", chats(50));
+            case "StoC_SearchResult":
+                ArrayList<Long> times = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    times.add(1_700_000_000_000L + i);
+                }
+                return new MessageStoC_SearchResult("hello", 20, 0, chats(20), times);
+            case "StoS_Hello":
+                return new MessageStoS_Hello("node-8080");
+            case "StoS_Envelope":
+                return new MessageStoS_Envelope("node-8080", 1, 1_700_000_000_000_000L, chat());
+            default:
+                throw new IllegalArgumentException("Unknown message type " + type);
+        }
+    }
+}
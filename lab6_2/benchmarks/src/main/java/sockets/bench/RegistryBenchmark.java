@@ -0,0 +1,64 @@
+package sockets.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sockets.ClientConnectionData;
+import sockets.ClientRegistry;
+
+/**
+ * Looks clients up by user name, and takes one out of the registry and puts
+ * it back. Removing and joining publish the presence change to every other
+ * client, so {@code removeAndJoin} grows with the number of clients.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class RegistryBenchmark {
+    @Param({ "1000", "10000" })
+    public int clients;
+
+    private ClientRegistry registry;
+    private Sink[] sinks;
+    private String[] userNames;
+    private int next;
+
+    @Setup
+    public void setup() {
+        registry = new ClientRegistry();
+        sinks = Clients.join(registry, clients, false);
+        userNames = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            userNames[i] = Clients.userName(i);
+        }
+    }
+
+    @Benchmark
+    public ClientConnectionData lookup() {
+        next = next + 1 == clients ? 0 : next + 1;
+        return registry.byUserName(userNames[next]);
+    }
+
+    @Benchmark
+    public boolean removeAndJoin() {
+        next = next + 1 == clients ? 0 : next + 1;
+        Sink sink = sinks[next];
+        registry.remove(sink);
+        registry.add(sink);
+        return registry.join(sink, userNames[next]);
+    }
+}
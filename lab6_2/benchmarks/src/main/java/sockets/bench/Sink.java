@@ -0,0 +1,43 @@
+package sockets.bench;
+
+import java.net.Socket;
+
+import sockets.ClientConnectionData;
+import sockets.Frame;
+import sockets.Message;
+import sockets.ServerConfig;
+
+/**
+ * An in-memory client connection. Frames handed to it either go through its
+ * real outbound queue and are taken straight off again, or are only counted,
+ * so a benchmark can tell the cost of queueing from the cost of fan-out.
+ */
+public class Sink extends ClientConnectionData {
+    private final boolean queue;
+    public long frames;
+    public long bytes;
+
+    public Sink(ServerConfig config, boolean queue) {
+        super(new Socket(), null, null, "sink", config);
+        this.queue = queue;
+    }
+
+    @Override
+    public void sendFrame(Frame frame) {
+        if (queue) {
+            super.sendFrame(frame);
+            frame = getOutbound().poll();
+        }
+        frames++;
+        bytes += frame.length();
+    }
+
+    /**
+     * Messages sent to a single client (the user list a joiner gets) are only
+     * counted; they are set-up traffic, not what is being measured.
+     */
+    @Override
+    public void send(Message m) {
+        frames++;
+    }
+}
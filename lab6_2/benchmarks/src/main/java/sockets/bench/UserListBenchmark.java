@@ -0,0 +1,55 @@
+package sockets.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sockets.ClientRegistry;
+import sockets.Frame;
+import sockets.MessageStoC_List;
+
+/**
+ * Builds and encodes the full user list a joining client gets, at large user
+ * counts.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class UserListBenchmark {
+    @Param({ "1000", "10000", "50000" })
+    public int users;
+
+    private ClientRegistry registry;
+    private MessageStoC_List list;
+
+    @Setup
+    public void setup() {
+        registry = new ClientRegistry();
+        Clients.join(registry, users, false);
+        list = construct();
+    }
+
+    @Benchmark
+    public MessageStoC_List construct() {
+        return new MessageStoC_List(1, registry.userNames());
+    }
+
+    @Benchmark
+    public Frame encode() throws IOException {
+        return Frame.of(list);
+    }
+}
@@ -1,6 +1,7 @@
 module sockets {
     requires transitive javafx.graphics;
     requires transitive javafx.controls;
+    requires java.management;
 
     exports sockets;
 }
@@ -0,0 +1,68 @@
+package sockets;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the accept pipeline, and how long clients wait between their
+ * connection being accepted and their welcome going out.
+ */
+public class AcceptMetrics {
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder welcomed = new LongAdder();
+    private static final LongAdder handshakeTimeouts = new LongAdder();
+    private static final LongAdder handshakeFailures = new LongAdder();
+    private static final LongAdder acceptToWelcomeNanos = new LongAdder();
+    private static final AtomicLong maxAcceptToWelcomeNanos = new AtomicLong();
+
+    public static void accepted() {
+        accepted.increment();
+    }
+
+    public static void welcomed(long acceptToWelcomeNanos) {
+        welcomed.increment();
+        AcceptMetrics.acceptToWelcomeNanos.add(acceptToWelcomeNanos);
+        maxAcceptToWelcomeNanos.accumulateAndGet(acceptToWelcomeNanos, Math::max);
+    }
+
+    public static void handshakeTimedOut() {
+        handshakeTimeouts.increment();
+    }
+
+    public static void handshakeFailed() {
+        handshakeFailures.increment();
+    }
+
+    public static long acceptedCount() {
+        return accepted.sum();
+    }
+
+    public static long welcomedCount() {
+        return welcomed.sum();
+    }
+
+    public static long handshakeTimeoutCount() {
+        return handshakeTimeouts.sum();
+    }
+
+    public static long handshakeFailureCount() {
+        return handshakeFailures.sum();
+    }
+
+    public static double meanAcceptToWelcomeMillis() {
+        long count = welcomed.sum();
+        return count == 0 ? 0 : acceptToWelcomeNanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public static double maxAcceptToWelcomeMillis() {
+        return maxAcceptToWelcomeNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public static String summary() {
+        return String.format("accepted %d, welcomed %d, handshake timeouts %d, handshake failures %d, "
+                + "accept to welcome mean %.2f ms max %.2f ms", acceptedCount(), welcomedCount(),
+                handshakeTimeoutCount(), handshakeFailureCount(), meanAcceptToWelcomeMillis(),
+                maxAcceptToWelcomeMillis());
+    }
+}
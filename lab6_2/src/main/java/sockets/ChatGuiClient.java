@@ -1,10 +1,15 @@
 package sockets;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
 
@@ -12,6 +17,7 @@ import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
 import javafx.geometry.Insets;
 import javafx.scene.Node;
 import javafx.scene.Scene;
@@ -23,30 +29,50 @@ import javafx.scene.control.Label;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.RadioButton;
-import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.control.ToggleGroup;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
 public class ChatGuiClient extends Application {
+    private static final int SEARCH_PAGE_SIZE = 20;
+    public static final String EVERYONE = "Everyone";
+    /**
+     * The order of the user list: Everyone, then users by name ignoring
+     * case. Names that only differ in case still get a fixed order.
+     */
+    public static final Comparator<String> USER_ORDER = Comparator.comparing((String name) -> !name.equals(EVERYONE))
+            .thenComparing(String.CASE_INSENSITIVE_ORDER).thenComparing(Comparator.naturalOrder());
+    // Past this many inserts and removals, replacing the whole list is cheaper.
+    private static final int MAX_LIST_EDITS = 64;
+
     private Socket socket;
-    private ObjectOutputStream socketOut;
-    private ObjectInputStream socketIn;
+    private DataOutputStream socketOut;
+    private DataInputStream socketIn;
 
+    // Sorted by USER_ORDER. Only touched on the FX thread, like the rest of
+    // the user list state.
     private final ObservableList<String> names = FXCollections.observableArrayList();
+    private final FilteredList<String> shownNames = new FilteredList<>(names);
     private ToggleGroup group = new ToggleGroup();
+    // Kept by name rather than by radio button, since cells and their
+    // buttons are reused for other users as the list changes and scrolls.
+    private String recipient = EVERYONE;
 
     private Stage stage;
-    private TextArea messageArea;
+    private MessageView messages;
     private TextField textInput;
     private Button sendButton;
 
     private ServerInfo serverInfo;
     public String username;
+    // Public messages go to this room. Only touched on the FX thread.
+    private String currentRoom = RoomRegistry.DEFAULT_ROOM;
+    private final LinkedHashSet<String> rooms = new LinkedHashSet<>(List.of(RoomRegistry.DEFAULT_ROOM));
     public ListView<String> listView;
 
     public static void main(String[] args) {
@@ -73,18 +99,21 @@ public class ChatGuiClient extends Application {
         this.stage = primaryStage;
         BorderPane borderPane = new BorderPane();
 
-        messageArea = new TextArea();
-        messageArea.setWrapText(true);
-        messageArea.setEditable(false);
-        borderPane.setCenter(messageArea);
+        messages = new MessageView();
+        borderPane.setCenter(messages.getNode());
 
         // active user list
         this.listView = new ListView<>();
         listView.setPrefSize(200, 250);
         listView.setEditable(false);
-        listView.setItems(names);
+        listView.setItems(shownNames);
         listView.setCellFactory(param -> new RadioListCell());
-        borderPane.setLeft(listView);
+        TextField userFilter = new TextField();
+        userFilter.setPromptText("Find user");
+        userFilter.textProperty().addListener((observable, oldPrefix, prefix) -> filterUsers(prefix));
+        VBox users = new VBox(userFilter, listView);
+        VBox.setVgrow(listView, Priority.ALWAYS);
+        borderPane.setLeft(users);
 
         // At first, can't send messages - wait for WELCOME!
         textInput = new TextField();
@@ -105,8 +134,9 @@ public class ChatGuiClient extends Application {
         stage.show();
 
         socket = new Socket(serverInfo.serverAddress, serverInfo.serverPort);
-        socketOut = new ObjectOutputStream(socket.getOutputStream());
-        socketIn = new ObjectInputStream(socket.getInputStream());
+        // sendMessage flushes after every message
+        socketOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        socketIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
         // Start the socketListener
         ChatGuiSocketListener socketListener = new ChatGuiSocketListener(socketIn, this);
@@ -115,6 +145,7 @@ public class ChatGuiClient extends Application {
         stage.setOnCloseRequest(e -> {
             sendMessage(new MessageCtoS_Quit());
             socketListener.appRunning = false;
+            messages.close();
 
             try {
                 socket.close();
@@ -127,16 +158,77 @@ public class ChatGuiClient extends Application {
         new Thread(socketListener).start();
     }
 
+    /**
+     * Shows a new user list, sorted by {@link #USER_ORDER}. Only the users
+     * that joined or left are inserted or removed, so the list view only
+     * updates the cells that changed. If the selected recipient left,
+     * messages go to everyone again. FX thread only.
+     */
     public void updateUserList(ArrayList<String> users) {
-        Platform.runLater(() -> {
-            names.clear();
-            names.addAll(users);
-        });
+        if (countEdits(users) > MAX_LIST_EDITS) {
+            names.setAll(users);
+        } else {
+            int i = 0;
+            for (String user : users) {
+                while (i < names.size() && USER_ORDER.compare(names.get(i), user) < 0) {
+                    names.remove(i);
+                }
+                if (i < names.size() && names.get(i).equals(user)) {
+                    i++;
+                } else {
+                    names.add(i++, user);
+                }
+            }
+            names.remove(i, names.size());
+        }
+        if (!recipient.equals(EVERYONE) && Collections.binarySearch(names, recipient, USER_ORDER) < 0) {
+            recipient = EVERYONE;
+            listView.refresh();
+        }
+    }
+
+    /**
+     * Inserts and removals needed to turn the shown list into {@code users},
+     * found by merging the two sorted lists.
+     */
+    private int countEdits(List<String> users) {
+        int edits = 0;
+        int i = 0;
+        int j = 0;
+        while (i < names.size() && j < users.size()) {
+            int c = USER_ORDER.compare(names.get(i), users.get(j));
+            if (c == 0) {
+                i++;
+                j++;
+            } else {
+                edits++;
+                if (c < 0) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+        }
+        return edits + (names.size() - i) + (users.size() - j);
     }
 
-    public void sendMessage(Message m) {
+    /**
+     * Only shows users whose names start with {@code prefix}, ignoring case.
+     */
+    private void filterUsers(String prefix) {
+        String p = prefix.trim();
+        if (p.isEmpty()) {
+            shownNames.setPredicate(null);
+        } else {
+            shownNames.setPredicate(name -> name.equals(EVERYONE) || name.regionMatches(true, 0, p, 0, p.length()));
+        }
+    }
+
+    // Called from both the FX thread and the listener thread, so frames must
+    // not interleave.
+    public synchronized void sendMessage(Message m) {
         try {
-            socketOut.writeObject(m);
+            MessageFrames.write(socketOut, m);
         } catch (IOException ex) {
             System.out.println("Exception caught when sending Message");
             ex.printStackTrace();
@@ -149,26 +241,94 @@ public class ChatGuiClient extends Application {
             return;
         }
         textInput.clear();
-        sendMessage(new MessageCtoS_Chat(username, getSelectedRecipient(), msg));
-        if (!getSelectedRecipient().equals("Everyone")) {
-            Platform.runLater(() -> {
-                getMessageArea().appendText(username + " to " + getSelectedRecipient() + " (Private): " + msg + "\n");
-            });
+        if (msg.startsWith("/")) {
+            processCommand(msg);
+            return;
         }
+        sendMessage(new MessageCtoS_Chat(username, getSelectedRecipient(), msg, currentRoom));
     }
 
-    public String getSelectedRecipient() {
-        if (group.getSelectedToggle() == null) {
-            return "Everyone";
+    /**
+     * Handles /join room, /leave [room] and /rooms. Joining a room we're
+     * already in just switches to it.
+     */
+    private void processCommand(String line) {
+        String[] parts = line.split("\\s+", 2);
+        String arg = parts.length > 1 ? parts[1].trim() : "";
+        switch (parts[0].toLowerCase()) {
+            case "/join":
+                if (rooms.contains(arg)) {
+                    switchRoom(arg);
+                } else {
+                    sendMessage(new MessageCtoS_JoinRoom(arg));
+                }
+                break;
+            case "/leave":
+                sendMessage(new MessageCtoS_LeaveRoom(arg.isEmpty() ? currentRoom : arg));
+                break;
+            case "/rooms":
+                sendMessage(new MessageCtoS_ListRooms());
+                break;
+            case "/search":
+                sendMessage(parseSearch(arg));
+                break;
+            default:
+                appendMessage("Commands: /join room, /leave [room], /rooms, "
+                        + "/search words [from:user] [last:minutes] [page:n]\n");
+                break;
         }
-        return ((RadioButton) group.getSelectedToggle()).getText();
     }
 
-    public ObjectOutputStream getSocketOut() {
+    private MessageCtoS_Search parseSearch(String arg) {
+        StringBuilder text = new StringBuilder();
+        String sender = null;
+        long from = 0;
+        int page = 1;
+        for (String word : arg.split("\\s+")) {
+            if (word.startsWith("from:")) {
+                sender = word.substring(5);
+            } else if (word.startsWith("last:") && word.substring(5).matches("\\d+")) {
+                from = System.currentTimeMillis() - Long.parseLong(word.substring(5)) * 60_000;
+            } else if (word.startsWith("page:") && word.substring(5).matches("\\d+")) {
+                page = Math.max(1, Integer.parseInt(word.substring(5)));
+            } else {
+                text.append(word).append(' ');
+            }
+        }
+        return new MessageCtoS_Search(text.toString().trim(), sender, from, Long.MAX_VALUE,
+                (page - 1) * SEARCH_PAGE_SIZE, SEARCH_PAGE_SIZE);
+    }
+
+    private void switchRoom(String room) {
+        currentRoom = room;
+        stage.setTitle("Chatter - " + username + " in " + room);
+    }
+
+    /**
+     * Called on the FX thread when the server confirms we joined or left a
+     * room.
+     */
+    public void roomChanged(String room, boolean joined) {
+        if (joined) {
+            rooms.add(room);
+            switchRoom(room);
+        } else {
+            rooms.remove(room);
+            if (room.equals(currentRoom) && !rooms.isEmpty()) {
+                switchRoom(rooms.iterator().next());
+            }
+        }
+    }
+
+    public String getSelectedRecipient() {
+        return recipient;
+    }
+
+    public DataOutputStream getSocketOut() {
         return socketOut;
     }
 
-    public ObjectInputStream getSocketIn() {
+    public DataInputStream getSocketIn() {
         return socketIn;
     }
 
@@ -176,8 +336,11 @@ public class ChatGuiClient extends Application {
         return stage;
     }
 
-    public TextArea getMessageArea() {
-        return messageArea;
+    /**
+     * Adds text to the bottom of the transcript. FX thread only.
+     */
+    public void appendMessage(String text) {
+        messages.append(text);
     }
 
     public TextField getTextInput() {
@@ -261,16 +424,24 @@ public class ChatGuiClient extends Application {
     }
 
     private class RadioListCell extends ListCell<String> {
+        // One button per cell, reused for whichever user the cell shows.
+        private final RadioButton radioButton = new RadioButton();
+
+        RadioListCell() {
+            radioButton.setToggleGroup(group);
+            radioButton.setOnAction(e -> recipient = getItem());
+        }
+
         @Override
         public void updateItem(String obj, boolean empty) {
             super.updateItem(obj, empty);
             if (empty) {
                 setText(null);
                 setGraphic(null);
+                radioButton.setSelected(false);
             } else {
-                RadioButton radioButton = new RadioButton(obj);
-                radioButton.setToggleGroup(group);
-                // Add Listeners if any
+                radioButton.setText(obj);
+                radioButton.setSelected(obj.equals(recipient));
                 setGraphic(radioButton);
             }
         }
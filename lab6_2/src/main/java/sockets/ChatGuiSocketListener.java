@@ -1,89 +1,181 @@
 package sockets;
 
-import java.io.ObjectInputStream;
+import java.io.DataInputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javafx.application.Platform;
 import javafx.scene.control.Button;
 import javafx.scene.control.ListCell;
-import javafx.scene.control.ListView;
 import javafx.scene.control.TextInputDialog;
-import javafx.util.Callback;
 
 public class ChatGuiSocketListener implements Runnable {
 
-    private ObjectInputStream socketIn;
+    private MessageFrames.Input socketIn;
     private ChatGuiClient chatGuiClient;
+    private final FxUpdateQueue ui;
     private String username = null;
 
+    // Everyone in the chat, including this user, as of presenceVersion.
+    private final ArrayList<String> users = new ArrayList<>();
+    private long presenceVersion = -1;
+    private boolean resyncing = false;
+    // The user list waiting to be shown; only the newest one is.
+    private final AtomicReference<ArrayList<String>> shownUsers = new AtomicReference<>();
+
     // volatile guarantees that different threads reading the same variable will
     // always see the latest write.
     // volatile variables are not stored in caches.
     volatile boolean appRunning = false;
 
-    public ChatGuiSocketListener(ObjectInputStream socketIn,
+    public ChatGuiSocketListener(DataInputStream socketIn,
             ChatGuiClient chatClient) {
-        this.socketIn = socketIn;
+        this.socketIn = new MessageFrames.Input(socketIn);
         this.chatGuiClient = chatClient;
+        this.ui = new FxUpdateQueue(chatClient::appendMessage);
     }
 
     private void processKickMessage(MessageStoC_Kick m) {
         // this user has been kicked from the chatroom
         if (m.targetUser.equals(this.username)) {
-            chatGuiClient.getMessageArea().appendText("You have been kicked from the chatroom by " + m.sendingUser
-                    + ". You will no longer be able to send or receive messages and may close this window. ");
-            chatGuiClient.getTextInput().setEditable(false);
-            chatGuiClient.getSendButton().setDisable(true);
+            ui.append("You have been kicked from the chatroom by " + m.sendingUser
+                    + ". You will no longer be able to send or receive messages and may close this window.\n");
+            ui.post(() -> {
+                chatGuiClient.getTextInput().setEditable(false);
+                chatGuiClient.getSendButton().setDisable(true);
+            });
             chatGuiClient.sendMessage(new MessageCtoS_Quit());
         } else {
-            Platform.runLater(() -> {
-                chatGuiClient.getMessageArea()
-                        .appendText(m.targetUser + " has been kicked from the chatroom by " + m.sendingUser + "\n");
-            });
-            updateUserList();
+            ui.append(m.targetUser + " has been kicked from the chatroom by " + m.sendingUser + "\n");
         }
     }
 
     private void processWelcomeMessage(MessageStoC_Welcome m) {
         String user = m.userName;
         if (user.equals(this.username)) {
-            Platform.runLater(() -> {
+            ui.post(() -> {
                 chatGuiClient.getStage().setTitle("Chatter - " + username);
                 chatGuiClient.getTextInput().setEditable(true);
                 chatGuiClient.getSendButton().setDisable(false);
-                chatGuiClient.getMessageArea().appendText("Welcome to the chat, " + username + "\n");
             });
+            ui.append("Welcome to the chat, " + username + "\n");
         } else {
-            Platform.runLater(() -> {
-                chatGuiClient.getMessageArea().appendText(m.userName + " joined the chat!\n");
-            });
+            ui.append(m.userName + " joined the chat!\n");
         }
-        updateUserList();
     }
 
     private void processChatMessage(MessageStoC_Chat m) {
-        Platform.runLater(() -> {
-            if (m.publicMsg) {
-                chatGuiClient.getMessageArea().appendText(m.sender + ": " + m.msg + "\n");
-            }
-            if (m.recipient.equals(username)) {
-                chatGuiClient.getMessageArea().appendText(m.sender + " (Private): " + m.msg + "\n");
-            }
-        });
+        ui.append(format(m));
+    }
+
+    private void processHistoryMessage(MessageStoC_History m) {
+        StringBuilder text = new StringBuilder();
+        for (MessageStoC_Chat chat : m.messages) {
+            text.append(format(chat));
+        }
+        text.append("--- earlier messages in ").append(m.room).append(" above ---\n");
+        ui.append(text.toString());
+    }
+
+    private void processSearchResultMessage(MessageStoC_SearchResult m) {
+        StringBuilder text = new StringBuilder();
+        text.append("Search \"").append(m.text).append("\": ").append(m.total).append(" matches");
+        if (m.total > 0) {
+            text.append(", showing ").append(m.offset + 1).append('-').append(m.offset + m.messages.size());
+        }
+        text.append('\n');
+        SimpleDateFormat time = new SimpleDateFormat("MMM d HH:mm");
+        for (int i = 0; i < m.messages.size(); i++) {
+            text.append("  ").append(time.format(new Date(m.times.get(i)))).append(' ')
+                    .append(format(m.messages.get(i)));
+        }
+        ui.append(text.toString());
+    }
+
+    private String format(MessageStoC_Chat m) {
+        // The server only sends a private message to its recipient and echoes
+        // it back to its sender.
+        if (m.publicMsg) {
+            String room = m.room == null || m.room.equals(RoomRegistry.DEFAULT_ROOM) ? "" : "[" + m.room + "] ";
+            return room + m.sender + ": " + m.msg + "\n";
+        } else if (m.sender.equals(username)) {
+            return username + " to " + m.recipient + " (Private): " + m.msg + "\n";
+        } else {
+            return m.sender + " (Private): " + m.msg + "\n";
+        }
     }
 
     public void processListMessage(MessageStoC_List m) {
-        m.users.remove(this.username);
-        m.users.sort(String::compareToIgnoreCase);
-        m.users.add(0, "Everyone");
-        this.chatGuiClient.updateUserList(m.users);
+        presenceVersion = m.version;
+        resyncing = false;
+        users.clear();
+        users.addAll(m.users);
+        showUserList();
     }
 
-    private void processExitMessage(MessageStoC_Exit m) {
-        Platform.runLater(() -> {
-            chatGuiClient.getMessageArea().appendText(m.userName + " has left the chat!\n");
+    private void processPresenceMessage(MessageStoC_Presence m) {
+        if (resyncing || m.version <= presenceVersion) {
+            return;
+        }
+        if (m.version != presenceVersion + 1) {
+            // We missed an update, so ask for the whole list again.
+            resyncing = true;
             updateUserList();
-        });
+            return;
+        }
+        presenceVersion = m.version;
+        if (m.joined) {
+            users.add(m.userName);
+        } else {
+            users.remove(m.userName);
+        }
+        showUserList();
+    }
+
+    private void showUserList() {
+        ArrayList<String> shown = new ArrayList<>(users);
+        shown.remove(this.username);
+        shown.sort(ChatGuiClient.USER_ORDER);
+        shown.add(0, ChatGuiClient.EVERYONE);
+        // A burst of joins and leaves only rebuilds the list once a frame.
+        if (shownUsers.getAndSet(shown) == null) {
+            ui.post(() -> chatGuiClient.updateUserList(shownUsers.getAndSet(null)));
+        }
+    }
+
+    private void processExitMessage(MessageStoC_Exit m) {
+        ui.append(m.userName + " has left the chat!\n");
+    }
+
+    private void processRoomMessage(MessageStoC_Room m) {
+        if (m.userName.equals(username)) {
+            ui.post(() -> chatGuiClient.roomChanged(m.room, m.joined));
+            ui.append((m.joined ? "You joined " : "You left ") + m.room + "\n");
+        } else {
+            ui.append("[" + m.room + "] " + m.userName + (m.joined ? " joined" : " left") + "\n");
+        }
+    }
+
+    private void processRoomListMessage(MessageStoC_RoomList m) {
+        StringBuilder text = new StringBuilder("Rooms:");
+        for (int i = 0; i < m.rooms.size(); i++) {
+            text.append(' ').append(m.rooms.get(i)).append(" (").append(m.members.get(i)).append(')');
+        }
+        text.append('\n');
+        ui.append(text.toString());
+    }
+
+    private void processDeniedMessage(MessageStoC_Denied m) {
+        ui.append("Server: " + m.reason + "\n");
+    }
+
+    private void processThrottledMessage(MessageStoC_Throttled m) {
+        String text = m.retryAfterMillis < 0 ? "That message is too long to send."
+                : "You're sending messages too fast; wait a moment before sending more.";
+        ui.append("Server: " + text + "\n");
     }
 
     private void updateUserList() {
@@ -99,52 +191,27 @@ public class ChatGuiSocketListener implements Runnable {
             // wrapping this with run later
             // save the username for later comparison in processWelcomeMessage
             // Send to the server
+            // Not through the update queue: a dialog can't be shown from a
+            // pulse.
 
             Platform.runLater(() -> {
                 this.username = getName();
                 chatGuiClient.username = this.username;
-                chatGuiClient.sendMessage(new MessageCtoS_Join(username));
+                // Ask for compression; long pastes and user lists are much
+                // smaller over a slow link.
+                chatGuiClient.sendMessage(new MessageCtoS_Join(username, true));
                 // if the user is an admin, give them the ability to kick people and place Kick
                 // buttons on their screen. This removes the private messaging feature, so for
                 // now, admins will not be able to send private messages.
                 if (username.equals("admin")) {
-                    chatGuiClient.listView.setCellFactory(new Callback<ListView<String>, ListCell<String>>() {
-                        @Override
-                        public ListCell<String> call(ListView<String> param) {
-                            return new ListCell<String>() {
-                                @Override
-                                protected void updateItem(String item, boolean empty) {
-                                    super.updateItem(item, empty);
-                                    if (empty || item == null) {
-                                        setText(null);
-                                        setGraphic(null);
-                                    } else {
-                                        if (item != "Everyone")
-                                        {
-                                            Button button = new Button("Kick");
-                                            button.setOnAction(event -> {
-                                                chatGuiClient.sendMessage(new MessageCtoS_Kick(username, item));
-                                            });
-                                            setGraphic(button);
-                                            setText(item);
-                                        }
-                                        else
-                                        {
-                                            setText("Everyone (Admin can't DM)");
-                                            setGraphic(null);
-                                        }
-                                    }
-                                }
-                            };
-                        }
-                    });
+                    chatGuiClient.listView.setCellFactory(param -> new KickListCell());
                 }
             });
 
             // If the user closes the UI window in ChatGuiClient, appRunning is changed to
             // false to exit this loop.
             while (appRunning) {
-                Message msg = (Message) socketIn.readObject();
+                Message msg = socketIn.read();
                 if (msg instanceof MessageStoC_Welcome) {
                     processWelcomeMessage((MessageStoC_Welcome) msg);
                 } else if (msg instanceof MessageStoC_Chat) {
@@ -155,6 +222,22 @@ public class ChatGuiSocketListener implements Runnable {
                     processListMessage((MessageStoC_List) msg);
                 } else if (msg instanceof MessageStoC_Kick) {
                     processKickMessage((MessageStoC_Kick) msg);
+                } else if (msg instanceof MessageStoC_Presence) {
+                    processPresenceMessage((MessageStoC_Presence) msg);
+                } else if (msg instanceof MessageStoC_Denied) {
+                    processDeniedMessage((MessageStoC_Denied) msg);
+                } else if (msg instanceof MessageStoC_Room) {
+                    processRoomMessage((MessageStoC_Room) msg);
+                } else if (msg instanceof MessageStoC_SearchResult) {
+                    processSearchResultMessage((MessageStoC_SearchResult) msg);
+                } else if (msg instanceof MessageStoC_History) {
+                    processHistoryMessage((MessageStoC_History) msg);
+                } else if (msg instanceof MessageStoC_RoomList) {
+                    processRoomListMessage((MessageStoC_RoomList) msg);
+                } else if (msg instanceof MessageStoC_Throttled) {
+                    processThrottledMessage((MessageStoC_Throttled) msg);
+                } else if (msg instanceof MessageStoC_Ping) {
+                    chatGuiClient.sendMessage(new MessageCtoS_Pong());
                 } else {
                     System.out.println("Unhandled message type: " + msg.getClass());
                 }
@@ -166,6 +249,35 @@ public class ChatGuiSocketListener implements Runnable {
         }
     }
 
+    /**
+     * A user list cell for the admin, with a Kick button next to each user.
+     * The button is made once and reused for whichever user the cell shows.
+     */
+    private class KickListCell extends ListCell<String> {
+        private final Button button = new Button("Kick");
+
+        KickListCell() {
+            button.setOnAction(event -> {
+                chatGuiClient.sendMessage(new MessageCtoS_Kick(username, getItem()));
+            });
+        }
+
+        @Override
+        protected void updateItem(String item, boolean empty) {
+            super.updateItem(item, empty);
+            if (empty || item == null) {
+                setText(null);
+                setGraphic(null);
+            } else if (!item.equals(ChatGuiClient.EVERYONE)) {
+                setGraphic(button);
+                setText(item);
+            } else {
+                setText("Everyone (Admin can't DM)");
+                setGraphic(null);
+            }
+        }
+    }
+
     private String getName() {
         String username = "";
         TextInputDialog nameDialog = new TextInputDialog();
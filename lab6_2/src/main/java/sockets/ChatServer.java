@@ -1,56 +1,197 @@
 package sockets;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Inet4Address;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class ChatServer {
     public static final int PORT = 54323;
-    private static final ArrayList<ClientConnectionData> clientArrayList = new ArrayList<>();
-    private static final List<ClientConnectionData> clientList = Collections.synchronizedList(clientArrayList);
+    private static final ClientRegistry clients = new ClientRegistry();
+    private static RoomRegistry rooms;
 
     public static void main(String[] args) throws Exception {
-        ExecutorService pool = Executors.newFixedThreadPool(100);
-
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Chat Server started.");
-            System.out.println("Local IP: " + Inet4Address.getLocalHost().getHostAddress());
-            System.out.println("Local Port: " + serverSocket.getLocalPort());
+        ServerConfig config = ServerConfig.parse(args);
+        Log.configure(config);
+        rooms = new RoomRegistry(config.roomShards);
+        if (config.historyDir != null) {
+            HistoryLog history = new HistoryLog(config);
+            rooms.setHistory(history);
+            history.start();
+        }
+        clients.setHeartbeats(Heartbeats.start(config));
+        ClusterNode cluster = new ClusterNode(config, clients, rooms);
+        clients.setCluster(cluster);
+        cluster.start();
+        ServerMetrics metrics = ServerMetrics.start(config, clients);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Log.info(metrics.snapshot());
+            Log.info(AcceptMetrics.summary());
+            Log.info(IoStats.summary());
+            Log.info(HistoryLog.summary());
+            if (cluster.isClustered()) {
+                Log.info(ClusterNode.summary());
+            }
+            Log.flush();
+        }));
 
-            while (true) {
-                try {
-                    Socket socket = serverSocket.accept();
-                    System.out.printf("Connected to %s:%d on local port %d\n", socket.getInetAddress(),
-                            socket.getPort(), socket.getLocalPort());
+        switch (config.mode) {
+            case NIO:
+                new NioChatServer(config, clients, rooms).run();
+                break;
+            case VIRTUAL:
+                ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+                runBlocking(config, virtualThreads, virtualThreads, virtualThreads);
+                break;
+            default:
+                ExecutorService pool = Executors.newFixedThreadPool(config.poolThreads);
+                ExecutorService writers = Executors.newCachedThreadPool();
+                ExecutorService handshakes = Executors.newFixedThreadPool(config.handshakeThreads);
+                ServerMetrics.monitor("listeners", pool);
+                ServerMetrics.monitor("handshakes", handshakes);
+                runBlocking(config, pool, writers, handshakes);
+                break;
+        }
+    }
 
-                    // This code should really be done in the separate thread
-                    ObjectOutputStream socketOut = new ObjectOutputStream(socket.getOutputStream());
-                    ObjectInputStream socketIn = new ObjectInputStream(socket.getInputStream());
-                    String name = socket.getInetAddress().getHostName();
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor() reflectively so the
+     * server still builds for Java 11.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("--mode=virtual needs Java 21 or newer", ex);
+        }
+    }
 
-                    ClientConnectionData client = new ClientConnectionData(socket, socketIn, socketOut, name);
-                    clientList.add(client);
+    /**
+     * Accepts connections and pushes each one through the pipeline: the accept
+     * thread only accepts, the handshake stage waits for the join message, and
+     * then the client's listener runs as its own task on {@code pool}. Each
+     * client's outbound queue gets a writer task of its own, so a slow reader
+     * never holds up the thread that sent to it.
+     */
+    private static void runBlocking(ServerConfig config, ExecutorService pool, ExecutorService writers,
+            ExecutorService handshakes) throws IOException {
+        ExecutorService resolver = config.reverseDns ? Executors.newFixedThreadPool(2) : null;
 
-                    System.out.println("added client " + name);
+        try (ServerSocket serverSocket = new ServerSocket(config.port, config.acceptBacklog)) {
+            Log.info("Chat Server started.");
+            Log.info("Local IP: {}", Inet4Address.getLocalHost().getHostAddress());
+            Log.info("Local Port: {}", serverSocket.getLocalPort());
 
-                    // handle client business in another thread
-                    pool.execute(new ChatServerSocketListener(client, clientList));
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    long acceptedAt = System.nanoTime();
+                    AcceptMetrics.accepted();
+                    handshakes.execute(() -> handshake(config, socket, acceptedAt, pool, writers, resolver));
                 }
 
                 // prevent exceptions from causing server from exiting.
                 catch (IOException ex) {
-                    System.out.println(ex.getMessage());
+                    Log.error("Accept failed: {}", ex.getMessage());
+                    ServerMetrics.exception();
                 }
 
             }
         }
     }
+
+    /**
+     * Sets up the client's streams and waits, for at most the handshake
+     * timeout, for its join message. A client that doesn't send one in time is
+     * dropped without ever holding up the accept thread.
+     */
+    private static void handshake(ServerConfig config, Socket socket, long acceptedAt, ExecutorService pool,
+            ExecutorService writers, ExecutorService resolver) {
+        Log.info("Connected to {}:{} on local port {}", socket.getInetAddress(), socket.getPort(),
+                socket.getLocalPort());
+
+        ClientConnectionData client;
+        Message first;
+        try {
+            socket.setSoTimeout(config.handshakeTimeoutMillis);
+            // Buffered, so a burst of frames goes out in one write and one read
+            // picks up every frame that has arrived. The writer flushes.
+            DataOutputStream socketOut = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), config.ioBufferBytes));
+            DataInputStream socketIn = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), config.ioBufferBytes));
+            String name = socket.getInetAddress().getHostAddress();
+
+            client = new ClientConnectionData(socket, socketIn, socketOut, name, config);
+            client.setAcceptedAt(acceptedAt);
+            first = client.readMessage();
+            if (!(first instanceof MessageCtoS_Join)) {
+                throw new IOException("Expected a join message but got " + first.getClass());
+            }
+            socket.setSoTimeout(0);
+        } catch (SocketTimeoutException ex) {
+            AcceptMetrics.handshakeTimedOut();
+            Log.warn("Handshake timed out for {}", socket.getInetAddress());
+            closeQuietly(socket);
+            return;
+        } catch (IOException ex) {
+            AcceptMetrics.handshakeFailed();
+            Log.warn("Handshake failed for {}: {}", socket.getInetAddress(), ex.getMessage());
+            closeQuietly(socket);
+            return;
+        }
+
+        if (resolver != null) {
+            client.resolveName(resolver);
+        }
+
+        // handle client business in another thread
+        ChatServerSocketListener listener = new ChatServerSocketListener(client, clients, rooms);
+        listener.setJoinMessage((MessageCtoS_Join) first);
+        writers.execute(() -> runWriter(client, config.writeBatchFrames));
+        pool.execute(listener);
+    }
+
+    /**
+     * Drains the client's outbound queue to its socket until the connection
+     * closes, on a writer thread of its own. Everything queued since the last
+     * pass goes into the buffered stream and out with one flush.
+     */
+    private static void runWriter(ClientConnectionData client, int writeBatchFrames) {
+        ArrayList<Frame> batch = new ArrayList<>(writeBatchFrames);
+        ArrayList<Frame> packed = new ArrayList<>(writeBatchFrames);
+        DataOutputStream out = client.getOut();
+        try {
+            while (client.getOutbound().takeAll(batch, writeBatchFrames)) {
+                long start = System.nanoTime();
+                client.pack(batch, packed);
+                for (int i = 0; i < packed.size(); i++) {
+                    packed.get(i).writeTo(out);
+                }
+                out.flush();
+                ServerMetrics.wrote(System.nanoTime() - start);
+                IoStats.wrote(packed.size());
+                batch.clear();
+                packed.clear();
+            }
+        } catch (IOException | InterruptedException ex) {
+        } finally {
+            client.abort();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+        }
+    }
 }
@@ -1,113 +1,324 @@
 package sockets;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Protocol handler for one client connection. The blocking engine drives it
+ * from {@link #run()}; the NIO engine feeds it decoded messages from an event
+ * loop through the process methods instead.
+ */
 public class ChatServerSocketListener implements Runnable {
     private ClientConnectionData client;
-    private List<ClientConnectionData> clientList;
+    private ClientRegistry clients;
+    private RoomRegistry rooms;
+    // Set when the handshake stage has already read the join message.
+    private MessageCtoS_Join joinMessage;
+    // Whether the client has been told its chats are being dropped.
+    private boolean throttled;
 
-    public ChatServerSocketListener(ClientConnectionData client, List<ClientConnectionData> clientList) {
+    public ChatServerSocketListener(ClientConnectionData client, ClientRegistry clients, RoomRegistry rooms) {
         this.client = client;
-        this.clientList = clientList;
+        this.clients = clients;
+        this.rooms = rooms;
     }
 
+    public void setJoinMessage(MessageCtoS_Join joinMessage) {
+        this.joinMessage = joinMessage;
+    }
+
+    /**
+     * Kicks a user on behalf of a moderator. The kicker is whoever this
+     * connection joined as, never what the client claims.
+     */
     private void processKickMessage(MessageCtoS_Kick m) {
-        for (ClientConnectionData client : clientList) {
-            if (client.getUserName().equals(m.targetUser)) {
-                System.out.println(m.targetUser + " has been kicked by " + m.sendingUser + ".");
-                broadcast(new MessageStoC_Kick(m.sendingUser, m.targetUser), null);
-            }
+        if (!isModerator()) {
+            deny("Only moderators can kick users.");
+        } else if (m.targetUser != null
+                && (clients.byUserName(m.targetUser) != null || clients.remoteNode(m.targetUser) != null)) {
+            Log.info("{} has been kicked by {}.", m.targetUser, client.getUserName());
+            ServerMetrics.kicked();
+            broadcastEverywhere(new MessageStoC_Kick(client.getUserName(), m.targetUser), null);
         }
     }
 
     private void processChatMessage(MessageCtoS_Chat m) {
-        System.out.println("Chat received: " + m);
-        broadcast(new MessageStoC_Chat(m.sender, m.recipient, m.msg), null);
+        long receivedAt = System.nanoTime();
+        Log.sampled(Log.Level.DEBUG, "Chat received: {}", m);
+        if (!admit()) {
+            return;
+        }
+        if (m.publicMsg) {
+            String roomName = m.room == null ? RoomRegistry.DEFAULT_ROOM : m.room;
+            // The sender is whoever this connection joined as, never what the
+            // client claims; the chat is logged, replayed and searched by it.
+            MessageStoC_Chat chat = new MessageStoC_Chat(client.getUserName(), m.recipient, m.msg, roomName);
+            if (!client.getRooms().contains(roomName) || !rooms.publishChat(chat, receivedAt)) {
+                deny("You are not in room " + roomName + ".");
+                return;
+            }
+            clients.getCluster().forward(chat);
+        } else {
+            sendPrivate(new MessageStoC_Chat(client.getUserName(), m.recipient, m.msg), receivedAt);
+        }
     }
 
-    private void processListMessage(MessageCtoS_List m) {
-        System.out.println("List request received from " + client.getUserName() + " - sending list");
+    /**
+     * Charges a message to the client's rate limit before it costs a fan-out
+     * or a reply. A client over its limit has the message dropped, and is told
+     * once, when the throttling starts.
+     *
+     * @return false if the message was dropped
+     */
+    private boolean admit() {
+        long wait = client.takeChat();
+        if (wait == 0) {
+            throttled = false;
+            return true;
+        }
+        ServerMetrics.throttled();
+        if (!throttled) {
+            throttled = true;
+            Log.info("Throttling {}", client.getUserName());
+            try {
+                client.send(new MessageStoC_Throttled(
+                        wait == Long.MAX_VALUE ? -1 : TimeUnit.NANOSECONDS.toMillis(wait) + 1));
+            } catch (IOException ex) {
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delivers a private message to its recipient only, and echoes it back to
+     * the sender so their window shows what was sent. A recipient on another
+     * node gets it through the cluster.
+     */
+    private void sendPrivate(MessageStoC_Chat m, long receivedAt) {
+        try {
+            ClientConnectionData recipient = clients.byUserName(m.recipient);
+            if (recipient == null && clients.remoteNode(m.recipient) != null) {
+                clients.getCluster().forward(m);
+                client.send(m);
+                ServerMetrics.fannedOut(receivedAt);
+                return;
+            }
+            if (recipient == null) {
+                client.send(new MessageStoC_Denied(m.recipient + " is not in the chat."));
+                return;
+            }
+            Frame frame = Frame.of(m);
+            recipient.sendFrame(frame);
+            if (recipient != client) {
+                client.sendFrame(frame);
+            }
+            ServerMetrics.fannedOut(receivedAt);
+        } catch (IOException ex) {
+            Log.error("Error sending private message from {}", client.getUserName(), ex);
+            ServerMetrics.exception();
+        }
+    }
 
-        ArrayList<String> users = new ArrayList<String>();
-        for (int i = 0; i < clientList.size(); i++) {
-            users.add(clientList.get(i).getUserName());
+    private void processJoinRoomMessage(MessageCtoS_JoinRoom m) {
+        if (!RoomRegistry.isValidName(m.room)) {
+            deny("\"" + m.room + "\" is not a valid room name.");
+            return;
         }
+        Room room = rooms.join(m.room, client);
+        if (room == null) {
+            deny("You are already in room " + m.room + ".");
+            return;
+        }
+        room.publish(new MessageStoC_Room(m.room, client.getUserName(), true), null);
+        rooms.sendHistory(m.room, client);
+    }
+
+    private void processLeaveRoomMessage(MessageCtoS_LeaveRoom m) {
+        Room room = m.room == null ? null : rooms.leave(m.room, client);
+        if (room == null) {
+            deny("You are not in room " + m.room + ".");
+            return;
+        }
+        MessageStoC_Room left = new MessageStoC_Room(m.room, client.getUserName(), false);
+        room.publish(left, null);
         try {
-            client.getOut().writeObject(new MessageStoC_List(users));
+            client.send(left);
         } catch (IOException ex) {
-            System.out.println("Error sending list to " + client.getUserName());
-            ex.printStackTrace();
+        }
+    }
+
+    private void processListRoomsMessage(MessageCtoS_ListRooms m) {
+        try {
+            client.send(rooms.list());
+        } catch (IOException ex) {
+            Log.error("Error sending room list to {}", client.getUserName(), ex);
+            ServerMetrics.exception();
         }
     }
 
     /**
-     * Broadcasts a message to all clients connected to the server.
+     * Searches the history for a moderator. The search runs on the history's
+     * own pool, so neither this client's messages nor anyone's fan-out waits
+     * for it.
+     */
+    private void processSearchMessage(MessageCtoS_Search m) {
+        if (!isModerator()) {
+            deny("Only moderators can search the history.");
+        } else if (rooms.getHistory() == null) {
+            deny("The history log is turned off on this server.");
+        } else if (!HistoryIndex.isSearchable(m.text, m.sender)) {
+            deny("Search for some words, or for from:user.");
+        } else {
+            rooms.getHistory().search(m, client);
+        }
+    }
+
+    private boolean isModerator() {
+        return "admin".equals(client.getUserName());
+    }
+
+    private void deny(String reason) {
+        try {
+            client.send(new MessageStoC_Denied(reason));
+        } catch (IOException ex) {
+        }
+    }
+
+    private void processListMessage(MessageCtoS_List m) {
+        Log.sampled(Log.Level.DEBUG, "List request received from {} - sending list", client.getUserName());
+        clients.sendSnapshot(client);
+    }
+
+    /**
+     * Broadcasts a message to all clients that have joined the server. The
+     * message is encoded once and the same frame is written to every recipient.
      */
     public void broadcast(Message m, ClientConnectionData skipClient) {
         try {
-            System.out.println("broadcasting: " + m);
-            for (ClientConnectionData c : clientList) {
-                // if c equals skipClient, then c.
-                // or if c hasn't set a userName yet (still joining the server)
-                if ((c != skipClient) && (c.getUserName() != null)) {
-                    c.getOut().writeObject(m);
-                }
-            }
+            Log.sampled(Log.Level.DEBUG, "broadcasting: {}", m);
+            clients.broadcast(Frame.of(m), skipClient);
         } catch (Exception ex) {
-            System.out.println("broadcast caught exception: " + ex);
-            ex.printStackTrace();
+            Log.error("broadcast caught exception: {}", ex, ex);
+            ServerMetrics.exception();
         }
     }
 
+    /**
+     * Broadcasts to this node's clients and forwards to the rest of the
+     * cluster. The broadcast is announced on the lobby's shard, so it stays
+     * in order with the lobby's chat.
+     */
+    private void broadcastEverywhere(Message m, ClientConnectionData skipClient) {
+        rooms.announce(() -> broadcast(m, skipClient));
+        clients.getCluster().forward(m);
+    }
+
+    /**
+     * Handles the join message that opens every session. This is where a
+     * connection that made it through the handshake gets registered.
+     *
+     * @return false if the join was denied and the session should end
+     */
+    public boolean processJoinMessage(MessageCtoS_Join joinMessage) {
+        client.setCompression(joinMessage.compress);
+        clients.add(client);
+        String userName = joinMessage.userName;
+        String reason = null;
+        if (userName == null || userName.trim().isEmpty() || userName.equals("Everyone")) {
+            reason = "\"" + userName + "\" is not a valid user name. Reconnect with another name.";
+        } else if (!clients.join(client, userName)) {
+            reason = "Someone is already using the name " + userName + ". Reconnect with another name.";
+        }
+        if (reason != null) {
+            Log.info("Join denied for {}: {}", client.getName(), reason);
+            deny(reason);
+            return false;
+        }
+
+        // Broadcast the welcome back to the client that joined.
+        // Their UI can decide what to do with the welcome message.
+        // The lobby's recent messages follow it on the lobby's shard, so the
+        // client sees its welcome, then the replay, then live lobby chat.
+        client.startRateLimit(isModerator());
+        broadcastEverywhere(new MessageStoC_Welcome(userName), null);
+        rooms.announce(() -> rooms.sendHistory(RoomRegistry.DEFAULT_ROOM, client));
+        rooms.join(RoomRegistry.DEFAULT_ROOM, client);
+
+        long acceptToWelcome = System.nanoTime() - client.getAcceptedAt();
+        AcceptMetrics.welcomed(acceptToWelcome);
+        Log.info("added client {} as {}, {} us after accept", client.getName(), userName, acceptToWelcome / 1000);
+        return true;
+    }
+
+    /**
+     * Handles one message from a joined client.
+     *
+     * @return false once the client has asked to quit
+     */
+    public boolean processMessage(Message msg) {
+        if (msg instanceof MessageCtoS_Quit) {
+            return false;
+        } else if (msg instanceof MessageCtoS_Pong) {
+            // Reading it was enough to show the client is alive.
+        } else if (msg instanceof MessageCtoS_Chat) {
+            processChatMessage((MessageCtoS_Chat) msg);
+        } else if (!admit()) {
+            // Everything below costs a fan-out or a reply, so it is charged
+            // to the same rate limit as chat.
+        } else if (msg instanceof MessageCtoS_List) {
+            processListMessage((MessageCtoS_List) msg);
+        } else if (msg instanceof MessageCtoS_Kick) {
+            processKickMessage((MessageCtoS_Kick) msg);
+        } else if (msg instanceof MessageCtoS_JoinRoom) {
+            processJoinRoomMessage((MessageCtoS_JoinRoom) msg);
+        } else if (msg instanceof MessageCtoS_LeaveRoom) {
+            processLeaveRoomMessage((MessageCtoS_LeaveRoom) msg);
+        } else if (msg instanceof MessageCtoS_ListRooms) {
+            processListRoomsMessage((MessageCtoS_ListRooms) msg);
+        } else if (msg instanceof MessageCtoS_Search) {
+            processSearchMessage((MessageCtoS_Search) msg);
+        } else {
+            Log.warn("Unhandled message type: {}", msg.getClass());
+        }
+        return true;
+    }
+
+    /**
+     * Removes the client from the server and its rooms, and tells everyone
+     * else that it left.
+     */
+    public void processDisconnect() {
+        rooms.leaveAll(client);
+        ServerMetrics.disconnected();
+
+        // Notify everyone that the user left, if they ever joined.
+        if (clients.remove(client)) {
+            broadcastEverywhere(new MessageStoC_Exit(client.getUserName()), client);
+        }
+
+        client.close();
+    }
+
     @Override
     public void run() {
         try {
-            ObjectInputStream in = client.getInput();
-
-            MessageCtoS_Join joinMessage = (MessageCtoS_Join) in.readObject();
-            client.setUserName(joinMessage.userName);
-
-            // Broadcast the welcome back to the client that joined.
-            // Their UI can decide what to do with the welcome message.
-            broadcast(new MessageStoC_Welcome(joinMessage.userName), null);
-
-            while (true) {
-                Message msg = (Message) in.readObject();
-                if (msg instanceof MessageCtoS_Quit) {
-                    break;
-                } else if (msg instanceof MessageCtoS_Chat) {
-                    processChatMessage((MessageCtoS_Chat) msg);
-                } else if (msg instanceof MessageCtoS_List) {
-                    processListMessage((MessageCtoS_List) msg);
-                } else if (msg instanceof MessageCtoS_Kick) {
-                    processKickMessage((MessageCtoS_Kick) msg);
-                } else {
-                    System.out.println("Unhandled message type: " + msg.getClass());
+            if (joinMessage == null) {
+                joinMessage = (MessageCtoS_Join) client.readMessage();
+            }
+            if (processJoinMessage(joinMessage)) {
+                while (processMessage(client.readMessage())) {
                 }
             }
         } catch (Exception ex) {
             if (ex instanceof SocketException) {
-                System.out.println("Caught socket ex for " +
-                        client.getName());
+                Log.info("Caught socket ex for {}", client.getName());
             } else {
-                System.out.println(ex);
-                ex.printStackTrace();
+                Log.error("{}", ex, ex);
+                ServerMetrics.exception();
             }
         } finally {
-            // Remove client from clientList
-            clientList.remove(client);
-
-            // Notify everyone that the user left.
-            broadcast(new MessageStoC_Exit(client.getUserName()), client);
-
-            try {
-                client.getSocket().close();
-            } catch (IOException ex) {
-            }
+            processDisconnect();
         }
     }
 
@@ -1,21 +1,262 @@
 package sockets;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ClientConnectionData {
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private final long id = nextId.incrementAndGet();
     private Socket socket;
-    private ObjectInputStream input;
-    private ObjectOutputStream out;
-    private String name;
+    private DataInputStream input;
+    private DataOutputStream out;
+    private volatile String name;
     private String userName;
+    private long acceptedAt;
+    private volatile long lastReadAt = System.nanoTime();
+    // The next heartbeat check, or null once the connection isn't watched.
+    private final AtomicReference<HashedTimerWheel.Timeout> heartbeat = new AtomicReference<>();
+    private final OutboundQueue outbound;
+    private final int maxFrameBytes;
+    private final int compressThreshold;
+    private final RateLimit rateLimit;
+    private final RateLimit moderatorRateLimit;
+    // Bytes in the buffered streams, and in the frame being read; for
+    // memoryUsage().
+    private final int streamBufferBytes;
+    private volatile int payloadBytes;
+    // Chat rate limit, picked at join, and the size of the frame just read;
+    // reader only.
+    private RateLimit.Limiter limiter;
+    private int frameBytes;
+    // Set once the client has asked for compression in its join.
+    private volatile boolean compress;
+    // Names of the rooms this client is in; changed only by RoomRegistry.
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
 
-    public ClientConnectionData(Socket socket, ObjectInputStream input, ObjectOutputStream out, String name) {
+    public ClientConnectionData(Socket socket, DataInputStream input, DataOutputStream out, String name,
+            ServerConfig config) {
         this.socket = socket;
         this.input = input;
         this.out = out;
         this.name = name;
+        this.outbound = config.newOutboundQueue();
+        this.maxFrameBytes = config.maxFrameBytes;
+        this.compressThreshold = config.compressThresholdBytes;
+        this.rateLimit = config.rateLimit;
+        this.moderatorRateLimit = config.moderatorRateLimit;
+        this.streamBufferBytes = (input == null ? 0 : config.ioBufferBytes) + (out == null ? 0 : config.ioBufferBytes);
+    }
+
+    /**
+     * Starts limiting this client's chats at its role's rate.
+     */
+    public void startRateLimit(boolean moderator) {
+        limiter = (moderator ? moderatorRateLimit : rateLimit).newLimiter();
+    }
+
+    /**
+     * Charges the chat just read to the rate limit.
+     *
+     * @return 0 if it may go out, otherwise nanoseconds until it could, or
+     *         {@link Long#MAX_VALUE} if it's bigger than the burst allows
+     */
+    public long takeChat() {
+        return limiter == null ? 0 : limiter.take(frameBytes);
+    }
+
+    protected void setFrameBytes(int frameBytes) {
+        this.frameBytes = frameBytes;
+    }
+
+    /**
+     * Sends frames compressed from now on if the client asked for it and the
+     * server hasn't turned compression off.
+     */
+    public void setCompression(boolean requested) {
+        compress = requested && compressThreshold > 0;
+    }
+
+    /**
+     * Blocks until the next message from this client arrives.
+     */
+    public Message readMessage() throws IOException {
+        byte[] payload = new byte[MessageFrames.readLength(input, maxFrameBytes)];
+        payloadBytes = payload.length;
+        try {
+            input.readFully(payload);
+        } finally {
+            payloadBytes = 0;
+        }
+        lastReadAt = System.nanoTime();
+        frameBytes = MessageFrames.HEADER_LENGTH + payload.length;
+        Message m = MessageFrames.decodeFromClient(payload, 0, payload.length);
+        IoStats.decoded(1);
+        ServerMetrics.received(m, MessageFrames.HEADER_LENGTH + payload.length);
+        return m;
+    }
+
+    /**
+     * Sends a single message to this client.
+     */
+    public void send(Message m) throws IOException {
+        sendFrame(Frame.of(m));
+    }
+
+    /**
+     * Queues an already encoded frame for this client's writer. Never blocks;
+     * a client that overflows its queue is disconnected.
+     */
+    public void sendFrame(Frame frame) {
+        if (!outbound.offer(frame)) {
+            Log.warn("Disconnecting slow client {}", name);
+            abort();
+        }
+    }
+
+    /**
+     * Adds the frames to write for {@code batch} to {@code packed}. For a
+     * client that takes compression, a frame of at least the threshold goes
+     * out in its compressed form, which is shared with every other recipient,
+     * and a run of smaller frames that adds up to the threshold goes out as
+     * one compressed batch. Anything else goes out as it is, and the order
+     * never changes.
+     */
+    protected void pack(List<Frame> batch, List<Frame> packed) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            ServerMetrics.sent(batch.get(i));
+        }
+        if (!compress) {
+            packed.addAll(batch);
+            return;
+        }
+        int runStart = 0;
+        int runBytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Frame frame = batch.get(i);
+            if (frame.length() >= compressThreshold) {
+                packRun(batch, runStart, i, runBytes, packed);
+                packed.add(compressed(frame.compressed(), frame.length()));
+                runStart = i + 1;
+                runBytes = 0;
+            } else {
+                runBytes += frame.length();
+            }
+        }
+        packRun(batch, runStart, batch.size(), runBytes, packed);
+    }
+
+    private void packRun(List<Frame> batch, int from, int to, int bytes, List<Frame> packed) throws IOException {
+        if (bytes >= compressThreshold) {
+            Frame c = Compression.compress(batch, from, to);
+            if (c != null) {
+                packed.add(compressed(c, bytes));
+                return;
+            }
+        }
+        for (int i = from; i < to; i++) {
+            packed.add(batch.get(i));
+        }
+    }
+
+    private static Frame compressed(Frame frame, int rawBytes) {
+        if (frame.type() == MessageStoC_Batch.class) {
+            ServerMetrics.compressed(frame, rawBytes);
+        }
+        return frame;
+    }
+
+    /**
+     * Ends the session from any thread, throwing away anything not yet sent.
+     * Closing the socket makes the reader fail, and the reader then runs the
+     * normal disconnect.
+     */
+    public void abort() {
+        outbound.discard();
+        try {
+            socket.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    /**
+     * Closes the connection once the reader is done with it. Frames already
+     * queued are still sent; the writer closes the socket after the last one.
+     */
+    public void close() {
+        outbound.close();
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * Estimated bytes held for this connection: frames waiting in the outbound
+     * queue, the buffers of its socket streams and a frame that is still
+     * arriving. A frame shared by a broadcast counts once for every recipient
+     * holding it.
+     */
+    public long memoryUsage() {
+        return outbound.queuedBytes() + streamBufferBytes + payloadBytes;
+    }
+
+    public static long totalMemoryUsage(Iterable<ClientConnectionData> clients) {
+        long total = 0;
+        for (ClientConnectionData c : clients) {
+            total += c.memoryUsage();
+        }
+        return total;
+    }
+
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Looks up the peer's host name in the background. Until the lookup
+     * finishes, {@link #getName()} returns the peer's address.
+     */
+    public void resolveName(Executor executor) {
+        executor.execute(() -> name = socket.getInetAddress().getHostName());
+    }
+
+    /**
+     * System.nanoTime() at which the client last sent anything.
+     */
+    public long getLastReadAt() {
+        return lastReadAt;
+    }
+
+    protected void setLastReadAt(long lastReadAt) {
+        this.lastReadAt = lastReadAt;
+    }
+
+    AtomicReference<HashedTimerWheel.Timeout> heartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * System.nanoTime() at which the connection was accepted.
+     */
+    public long getAcceptedAt() {
+        return acceptedAt;
+    }
+
+    public void setAcceptedAt(long acceptedAt) {
+        this.acceptedAt = acceptedAt;
     }
 
     public Socket getSocket() {
@@ -26,19 +267,19 @@ public class ClientConnectionData {
         this.socket = socket;
     }
 
-    public ObjectInputStream getInput() {
+    public DataInputStream getInput() {
         return input;
     }
 
-    public void setInput(ObjectInputStream input) {
+    public void setInput(DataInputStream input) {
         this.input = input;
     }
 
-    public ObjectOutputStream getOut() {
+    public DataOutputStream getOut() {
         return out;
     }
 
-    public void setOut(ObjectOutputStream out) {
+    public void setOut(DataOutputStream out) {
         this.out = out;
     }
 
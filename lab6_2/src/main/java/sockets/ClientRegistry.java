@@ -0,0 +1,334 @@
+package sockets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Every connected client, indexed by connection id and by user name.
+ *
+ * Lookups go straight to a concurrent map. Joined clients are also kept in an
+ * immutable array snapshot that is replaced on every join and leave, so
+ * broadcasts iterate it without taking a lock. Joins and leaves are
+ * serialized so the indexes and the snapshot always agree.
+ *
+ * The registry also owns the presence feed. Every join and leave bumps the
+ * presence version under the lock, but is sent to every joined client as a
+ * small {@link MessageStoC_Presence} delta only after the lock is released,
+ * so a join never waits for a fan-out. The deltas go out through a queue that
+ * one thread at a time drains in version order, so every client still sees
+ * the versions in order. A joining client gets the full list once, as a
+ * versioned {@link MessageStoC_List}.
+ *
+ * In a cluster the registry also knows the users on other nodes. Local joins
+ * and leaves are forwarded to the peers from the same queue, and remote ones
+ * are published to local clients like any other presence change.
+ */
+public class ClientRegistry {
+    private static final ClientConnectionData[] EMPTY = new ClientConnectionData[0];
+
+    private final ConcurrentHashMap<Long, ClientConnectionData> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ClientConnectionData> byUserName = new ConcurrentHashMap<>();
+    // Users on other nodes, by user name, with the id of the node they are on.
+    private final ConcurrentHashMap<String, String> remoteUsers = new ConcurrentHashMap<>();
+    private ClusterNode cluster;
+    private Heartbeats heartbeats;
+    private volatile ClientConnectionData[] joined = EMPTY;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long presenceVersion;
+    // Presence changes waiting to go out, queued under the lock in version order.
+    private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock publishLock = new ReentrantLock();
+    // Every user and the version as of the last change that went out. Guarded
+    // by publishLock.
+    private final LinkedHashSet<String> published = new LinkedHashSet<>();
+    private long publishedVersion;
+
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    public void setHeartbeats(Heartbeats heartbeats) {
+        this.heartbeats = heartbeats;
+    }
+
+    /**
+     * Registers a connection that hasn't joined yet, and starts watching it
+     * for silence.
+     */
+    public void add(ClientConnectionData client) {
+        byId.put(client.getId(), client);
+        if (heartbeats != null) {
+            heartbeats.watch(client);
+        }
+    }
+
+    /**
+     * Claims {@code userName} for the client, adds it to the snapshot and
+     * publishes the join. The client itself gets the full user list.
+     *
+     * @return false if another client already has that name
+     */
+    public boolean join(ClientConnectionData client, String userName) {
+        lock.lock();
+        try {
+            if (remoteUsers.containsKey(userName) || byUserName.putIfAbsent(userName, client) != null) {
+                return false;
+            }
+            client.setUserName(userName);
+            ClientConnectionData[] next = Arrays.copyOf(joined, joined.length + 1);
+            next[joined.length] = client;
+            joined = next;
+            queue(new MessageStoC_Presence(++presenceVersion, userName, true), next, client, true);
+            pending.add(() -> sendList(client));
+        } finally {
+            lock.unlock();
+        }
+        publishPending();
+        return true;
+    }
+
+    /**
+     * Removes the client from every index and publishes the leave.
+     *
+     * @return true if the client had joined
+     */
+    public boolean remove(ClientConnectionData client) {
+        byId.remove(client.getId());
+        if (heartbeats != null) {
+            heartbeats.unwatch(client);
+        }
+        lock.lock();
+        try {
+            String userName = client.getUserName();
+            if (userName == null || !byUserName.remove(userName, client)) {
+                return false;
+            }
+            ClientConnectionData[] current = joined;
+            ClientConnectionData[] next = new ClientConnectionData[current.length - 1];
+            int n = 0;
+            for (ClientConnectionData c : current) {
+                if (c != client) {
+                    next[n++] = c;
+                }
+            }
+            joined = next;
+            queue(new MessageStoC_Presence(++presenceVersion, userName, false), next, null, true);
+        } finally {
+            lock.unlock();
+        }
+        publishPending();
+        return true;
+    }
+
+    /**
+     * Records that a user joined on another node.
+     */
+    public void remoteJoin(String nodeId, String userName) {
+        lock.lock();
+        try {
+            if (byUserName.containsKey(userName) || remoteUsers.putIfAbsent(userName, nodeId) != null) {
+                Log.warn("Ignoring {} on {}: name already in use", userName, nodeId);
+                return;
+            }
+            queue(new MessageStoC_Presence(++presenceVersion, userName, true), joined, null, false);
+        } finally {
+            lock.unlock();
+        }
+        publishPending();
+    }
+
+    /**
+     * Records that a user on another node left.
+     */
+    public void remoteLeave(String nodeId, String userName) {
+        lock.lock();
+        try {
+            queueRemoteLeave(nodeId, userName);
+        } finally {
+            lock.unlock();
+        }
+        publishPending();
+    }
+
+    private void queueRemoteLeave(String nodeId, String userName) {
+        if (remoteUsers.remove(userName, nodeId)) {
+            queue(new MessageStoC_Presence(++presenceVersion, userName, false), joined, null, false);
+        }
+    }
+
+    /**
+     * Forgets every user on a node whose link has gone down.
+     */
+    public void dropNode(String nodeId) {
+        lock.lock();
+        try {
+            for (String userName : remoteUsers.keySet()) {
+                if (nodeId.equals(remoteUsers.get(userName))) {
+                    queueRemoteLeave(nodeId, userName);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        publishPending();
+    }
+
+    /**
+     * Brings a freshly connected peer link up to date: the link is emptied,
+     * given every local user as a join and then opened for forwarding. The
+     * users are taken under the lock and the link is opened from the presence
+     * queue, so the peer sees no stale or missing presence changes.
+     */
+    public void syncPeer(PeerLink link) {
+        lock.lock();
+        try {
+            ClientConnectionData[] current = joined;
+            long version = presenceVersion;
+            pending.add(() -> {
+                ArrayList<Message> joins = new ArrayList<>(current.length);
+                for (ClientConnectionData c : current) {
+                    joins.add(new MessageStoC_Presence(version, c.getUserName(), true));
+                }
+                cluster.open(link, joins);
+            });
+        } finally {
+            lock.unlock();
+        }
+        publishPending();
+    }
+
+    /**
+     * @return the id of the node the user is on, or null if the user isn't
+     *         on another node
+     */
+    public String remoteNode(String userName) {
+        return remoteUsers.get(userName);
+    }
+
+    private void forward(MessageStoC_Presence m) {
+        if (cluster != null) {
+            cluster.forward(m);
+        }
+    }
+
+    /**
+     * Sends the client the full user list, e.g. when it has missed a presence
+     * update.
+     */
+    public void sendSnapshot(ClientConnectionData client) {
+        pending.add(() -> sendList(client));
+        publishPending();
+    }
+
+    private void sendList(ClientConnectionData client) {
+        try {
+            client.send(new MessageStoC_List(publishedVersion, new ArrayList<>(published)));
+        } catch (IOException ex) {
+            Log.error("Error sending list to {}", client.getUserName(), ex);
+            ServerMetrics.exception();
+        }
+    }
+
+    /**
+     * Queues a presence change for the clients that were joined when it
+     * happened. Called under the lock, so the queue is in version order.
+     *
+     * @param local whether the change happened on this node and should be
+     *              forwarded to the peers
+     */
+    private void queue(MessageStoC_Presence m, ClientConnectionData[] recipients,
+            ClientConnectionData skipClient, boolean local) {
+        pending.add(() -> {
+            if (m.joined) {
+                published.add(m.userName);
+            } else {
+                published.remove(m.userName);
+            }
+            publishedVersion = m.version;
+            publish(m, recipients, skipClient);
+            if (local) {
+                forward(m);
+            }
+        });
+    }
+
+    /**
+     * Sends the queued presence changes, unless another thread already is.
+     * A change queued just as that thread finishes is picked up by the loop
+     * here, so nothing is left behind.
+     */
+    private void publishPending() {
+        while (!pending.isEmpty() && publishLock.tryLock()) {
+            try {
+                Runnable update;
+                while ((update = pending.poll()) != null) {
+                    update.run();
+                }
+            } finally {
+                publishLock.unlock();
+            }
+        }
+    }
+
+    private void publish(MessageStoC_Presence m, ClientConnectionData[] recipients,
+            ClientConnectionData skipClient) {
+        try {
+            Frame frame = Frame.of(m);
+            for (ClientConnectionData c : recipients) {
+                if (c != skipClient) {
+                    c.sendFrame(frame);
+                }
+            }
+        } catch (IOException ex) {
+            Log.error("Error publishing {}", m, ex);
+            ServerMetrics.exception();
+        }
+    }
+
+    /**
+     * Sends a frame to every client that has joined this node.
+     */
+    public void broadcast(Frame frame, ClientConnectionData skipClient) {
+        for (ClientConnectionData c : joined) {
+            if (c != skipClient) {
+                c.sendFrame(frame);
+            }
+        }
+    }
+
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    public ClientConnectionData byId(long id) {
+        return byId.get(id);
+    }
+
+    public ClientConnectionData byUserName(String userName) {
+        return byUserName.get(userName);
+    }
+
+    /**
+     * Joined clients at the moment of the call. The array is never modified,
+     * so callers may iterate it while others join and leave.
+     */
+    public ClientConnectionData[] snapshot() {
+        return joined;
+    }
+
+    /**
+     * Number of open connections, joined or not.
+     */
+    public int connectionCount() {
+        return byId.size();
+    }
+
+    public Iterable<ClientConnectionData> connections() {
+        return byId.values();
+    }
+}
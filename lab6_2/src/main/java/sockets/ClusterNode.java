@@ -0,0 +1,259 @@
+package sockets;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This server's place in a cluster of nodes, each accepting its own clients.
+ *
+ * Nodes form a full mesh. Every node keeps an outgoing {@link PeerLink} to
+ * each of its {@code --peers} and accepts their incoming links on
+ * {@code --cluster-port}. A node only forwards messages that started on it,
+ * straight to each peer, and never passes on what it receives, so every
+ * message crosses each link at most once. Receivers still drop any envelope
+ * id they have already seen from that origin.
+ *
+ * A node without peers forwards nothing, so a single server runs as before.
+ */
+public class ClusterNode {
+    private static final long REPORT_SECONDS = 10;
+
+    private static final LongAdder forwarded = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static final LongAdder duplicates = new LongAdder();
+    private static final LongAdder latencyMicros = new LongAdder();
+    private static final AtomicLong maxLatencyMicros = new AtomicLong();
+
+    private final String nodeId;
+    private final ServerConfig config;
+    private final ClientRegistry clients;
+    private final RoomRegistry rooms;
+    private final PeerLink[] links;
+    // Envelope ids are handed out and queued under this lock, so every link
+    // carries them in order.
+    private final ReentrantLock forwardLock = new ReentrantLock();
+    private long nextId;
+    // The current incoming link from each node, and the last id seen on it.
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> lastSeen = new ConcurrentHashMap<>();
+
+    public ClusterNode(ServerConfig config, ClientRegistry clients, RoomRegistry rooms) {
+        this.nodeId = config.nodeId;
+        this.config = config;
+        this.clients = clients;
+        this.rooms = rooms;
+        this.links = new PeerLink[config.peers.size()];
+        for (int i = 0; i < links.length; i++) {
+            links[i] = new PeerLink(config.peers.get(i), this, config);
+        }
+    }
+
+    public void start() throws IOException {
+        if (config.clusterPort > 0) {
+            ServerSocket serverSocket = new ServerSocket(config.clusterPort);
+            startDaemon(() -> accept(serverSocket), "cluster-accept");
+            Log.info("Cluster node {} listening on port {}", nodeId, config.clusterPort);
+        }
+        for (PeerLink link : links) {
+            startDaemon(link, "cluster-out-" + link);
+        }
+        if (links.length > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cluster-report");
+                t.setDaemon(true);
+                return t;
+            });
+            long[] lastReceived = new long[1];
+            reporter.scheduleAtFixedRate(() -> {
+                if (received.sum() != lastReceived[0]) {
+                    lastReceived[0] = received.sum();
+                    Log.info(summary());
+                }
+            }, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public boolean isClustered() {
+        return links.length > 0;
+    }
+
+    /**
+     * Sends a message that started on this node to every peer.
+     */
+    public void forward(Message m) {
+        if (links.length == 0) {
+            return;
+        }
+        forwardLock.lock();
+        try {
+            Frame frame = envelope(m);
+            for (PeerLink link : links) {
+                link.send(frame);
+            }
+            forwarded.increment();
+        } catch (IOException ex) {
+            Log.error("Error forwarding {}", m, ex);
+            ServerMetrics.exception();
+        } finally {
+            forwardLock.unlock();
+        }
+    }
+
+    private Frame envelope(Message m) throws IOException {
+        return Frame.of(new MessageStoS_Envelope(nodeId, ++nextId, nowMicros(), m));
+    }
+
+    /**
+     * Called by a link that has just connected. The registry calls back into
+     * {@link #open(PeerLink, List)} with its users, in order with the presence
+     * changes it forwards.
+     */
+    void sync(PeerLink link) {
+        clients.syncPeer(link);
+    }
+
+    void open(PeerLink link, List<Message> messages) {
+        forwardLock.lock();
+        try {
+            ArrayList<Frame> frames = new ArrayList<>(messages.size());
+            for (Message m : messages) {
+                frames.add(envelope(m));
+            }
+            link.open(frames);
+        } catch (IOException ex) {
+            Log.error("Error syncing {}", link, ex);
+            ServerMetrics.exception();
+        } finally {
+            forwardLock.unlock();
+        }
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                startDaemon(() -> serve(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+            } catch (IOException ex) {
+                Log.error("Cluster accept failed: {}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads one incoming link until it closes. When a node reconnects, its
+     * new link replaces the old one and the node's users are forgotten until
+     * it sends them again.
+     */
+    private void serve(Socket socket) {
+        String origin = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Message first = MessageFrames.read(in);
+            if (!(first instanceof MessageStoS_Hello)) {
+                throw new IOException("Expected a hello but got " + first.getClass());
+            }
+            origin = ((MessageStoS_Hello) first).nodeId;
+            Socket previous = inbound.put(origin, socket);
+            if (previous != null) {
+                previous.close();
+            }
+            lastSeen.remove(origin);
+            clients.dropNode(origin);
+            Log.info("Cluster link from {} is up", origin);
+
+            while (true) {
+                Message m = MessageFrames.read(in);
+                if (m instanceof MessageStoS_Envelope) {
+                    deliver((MessageStoS_Envelope) m);
+                } else {
+                    Log.warn("Unhandled cluster message type: {}", m.getClass());
+                }
+            }
+        } catch (IOException ex) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+            if (origin != null && inbound.remove(origin, socket)) {
+                Log.info("Cluster link from {} is down", origin);
+                clients.dropNode(origin);
+            }
+        }
+    }
+
+    private void deliver(MessageStoS_Envelope e) throws IOException {
+        Long last = lastSeen.get(e.origin);
+        if (last != null && e.id <= last) {
+            duplicates.increment();
+            return;
+        }
+        lastSeen.put(e.origin, e.id);
+        received.increment();
+        long latency = Math.max(0, nowMicros() - e.sentAtMicros);
+        latencyMicros.add(latency);
+        maxLatencyMicros.accumulateAndGet(latency, Math::max);
+
+        Message m = e.payload;
+        if (m instanceof MessageStoC_Chat) {
+            MessageStoC_Chat chat = (MessageStoC_Chat) m;
+            if (chat.publicMsg) {
+                rooms.publishChat(chat, System.nanoTime());
+            } else {
+                ClientConnectionData recipient = clients.byUserName(chat.recipient);
+                if (recipient != null) {
+                    recipient.send(chat);
+                }
+            }
+        } else if (m instanceof MessageStoC_Presence) {
+            MessageStoC_Presence presence = (MessageStoC_Presence) m;
+            if (presence.joined) {
+                clients.remoteJoin(e.origin, presence.userName);
+            } else {
+                clients.remoteLeave(e.origin, presence.userName);
+            }
+        } else if (m instanceof MessageStoC_Welcome || m instanceof MessageStoC_Exit
+                || m instanceof MessageStoC_Kick) {
+            Frame frame = Frame.of(m);
+            rooms.announce(() -> clients.broadcast(frame, null));
+        } else {
+            Log.warn("Unhandled forwarded message type: {}", m.getClass());
+        }
+    }
+
+    private static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    }
+
+    public static String summary() {
+        long n = received.sum();
+        return String.format(
+                "cluster: forwarded %d, received %d, duplicates %d, delivery latency mean %.3f ms max %.3f ms",
+                forwarded.sum(), n, duplicates.sum(), n == 0 ? 0.0 : latencyMicros.sum() / 1000.0 / n,
+                maxLatencyMicros.get() / 1000.0);
+    }
+}
@@ -0,0 +1,110 @@
+package sockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Packs frames into one compressed {@link MessageStoC_Batch} frame and
+ * unpacks them again. The batch payload is its type tag, the int length of
+ * the frames it holds and then those frames, header and all, deflated.
+ *
+ * Deflaters hold native memory, so they are pooled rather than kept per
+ * connection; a pool only grows to the number of threads compressing at
+ * once.
+ */
+public class Compression {
+    // Most of a batch is chat text, which compresses about as well at the
+    // fastest level as at the default.
+    private static final int LEVEL = Deflater.BEST_SPEED;
+    private static final int MAX_BATCH_BYTES = 64 * MessageFrames.MAX_FRAME_LENGTH;
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Compresses frames {@code from} to {@code to} of {@code frames} into one
+     * batch frame.
+     *
+     * @return the batch, or null if it wouldn't be any smaller
+     */
+    public static Frame compress(List<Frame> frames, int from, int to) throws IOException {
+        int rawBytes = 0;
+        for (int i = from; i < to; i++) {
+            rawBytes += frames.get(i).length();
+        }
+        if (rawBytes > MAX_BATCH_BYTES) {
+            return null;
+        }
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL);
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(rawBytes / 2 + 64);
+            byte[] header = new byte[MessageFrames.HEADER_LENGTH + 5];
+            bytes.write(header);
+            DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater, 8 * 1024);
+            for (int i = from; i < to; i++) {
+                frames.get(i).writeTo(out);
+            }
+            out.finish();
+            int length = bytes.size() - MessageFrames.HEADER_LENGTH;
+            if (bytes.size() >= rawBytes || length > MessageFrames.MAX_FRAME_LENGTH) {
+                return null;
+            }
+            byte[] frame = bytes.toByteArray();
+            putInt(frame, 0, length);
+            frame[MessageFrames.HEADER_LENGTH] = MessageCodec.STOC_BATCH;
+            putInt(frame, MessageFrames.HEADER_LENGTH + 1, rawBytes);
+            return Frame.batch(frame);
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    /**
+     * Inflates a batch's frames, {@code rawBytes} of them, from the rest of
+     * its payload.
+     */
+    public static byte[] decompress(byte[] buf, int offset, int length, int rawBytes) throws IOException {
+        if (rawBytes < 0 || rawBytes > MAX_BATCH_BYTES) {
+            throw new IOException("Bad batch length: " + rawBytes);
+        }
+        byte[] raw = new byte[rawBytes];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buf, offset, length);
+            // Inflating into a spare byte once the batch is full catches a
+            // batch that holds more than it says.
+            byte[] spare = new byte[1];
+            int n = 0;
+            while (!inflater.finished() && n <= rawBytes) {
+                int inflated = n < rawBytes ? inflater.inflate(raw, n, rawBytes - n) : inflater.inflate(spare);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != rawBytes || !inflater.finished() || inflater.getRemaining() != 0) {
+                throw new IOException("Batch didn't inflate to " + rawBytes + " bytes");
+            }
+            return raw;
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt batch", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void putInt(byte[] buf, int at, int v) {
+        buf[at] = (byte) (v >>> 24);
+        buf[at + 1] = (byte) (v >>> 16);
+        buf[at + 2] = (byte) (v >>> 8);
+        buf[at + 3] = (byte) v;
+    }
+}
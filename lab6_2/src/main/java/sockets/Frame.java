@@ -0,0 +1,84 @@
+package sockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * An encoded, immutable message frame. A broadcast encodes the message once
+ * and hands the same frame to every recipient, and compresses it at most
+ * once for all the recipients that take compressed frames.
+ */
+public final class Frame {
+    private final byte[] bytes;
+    private final boolean critical;
+    private final Class<? extends Message> type;
+    // This frame as a compressed batch of one, or the frame itself if that
+    // isn't any smaller; null until a recipient first asks.
+    private volatile Frame compressed;
+
+    private Frame(byte[] bytes, boolean critical, Class<? extends Message> type) {
+        this.bytes = bytes;
+        this.critical = critical;
+        this.type = type;
+    }
+
+    public static Frame of(Message m) throws IOException {
+        // Chat traffic may be shed for a slow client; presence and control
+        // messages may not.
+        return new Frame(MessageFrames.encodeFrame(m), !(m instanceof MessageStoC_Chat), m.getClass());
+    }
+
+    /**
+     * Wraps a frame built by {@link Compression}.
+     */
+    static Frame batch(byte[] bytes) {
+        return new Frame(bytes, true, MessageStoC_Batch.class);
+    }
+
+    /**
+     * Returns this frame compressed, or this frame itself if compressing it
+     * doesn't save anything. Two recipients asking at once may both do the
+     * work, but every later one gets the saved result.
+     */
+    public Frame compressed() throws IOException {
+        Frame c = compressed;
+        if (c == null) {
+            c = Compression.compress(List.of(this), 0, 1);
+            if (c == null) {
+                c = this;
+            }
+            compressed = c;
+        }
+        return c;
+    }
+
+    public boolean isCritical() {
+        return critical;
+    }
+
+    /**
+     * The class of the message in the frame, for per-type metrics.
+     */
+    public Class<? extends Message> type() {
+        return type;
+    }
+
+    /**
+     * Returns a new read-only view of the frame. Views share the frame's bytes,
+     * but each has its own position, so every recipient can be written
+     * independently.
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+}
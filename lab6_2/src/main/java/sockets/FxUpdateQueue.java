@@ -0,0 +1,90 @@
+package sockets;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ * Hands UI updates from the socket listener to the FX thread in batches.
+ * The listener adds them to a lock-free queue and the FX thread drains it
+ * once per pulse, so a burst of thousands of messages costs one UI update
+ * per frame rather than a Platform.runLater each. Transcript text queued
+ * back to back is joined and appended in one go.
+ *
+ * The timer only runs while there is something to drain, so an idle client
+ * isn't woken every frame.
+ */
+public class FxUpdateQueue extends AnimationTimer {
+    // Bounds the work done in one frame; the rest waits for the next one.
+    private static final int MAX_PER_PULSE = 10000;
+
+    // Transcript text as a String, anything else as a Runnable.
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Consumer<String> transcript;
+    // FX thread only.
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * @param transcript adds text to the bottom of the transcript
+     */
+    public FxUpdateQueue(Consumer<String> transcript) {
+        this.transcript = transcript;
+    }
+
+    /**
+     * Queues text for the bottom of the transcript. Any thread.
+     */
+    public void append(String text) {
+        add(text);
+    }
+
+    /**
+     * Queues an update to run on the FX thread, after everything queued
+     * before it. Any thread.
+     */
+    public void post(Runnable update) {
+        add(update);
+    }
+
+    private void add(Object update) {
+        queue.add(update);
+        if (running.compareAndSet(false, true)) {
+            Platform.runLater(this::start);
+        }
+    }
+
+    @Override
+    public void handle(long now) {
+        Object update;
+        for (int i = 0; i < MAX_PER_PULSE && (update = queue.poll()) != null; i++) {
+            if (update instanceof String) {
+                text.append((String) update);
+            } else {
+                flush();
+                ((Runnable) update).run();
+            }
+        }
+        flush();
+        if (queue.isEmpty()) {
+            stop();
+            running.set(false);
+            // An update added between the check and clearing the flag saw
+            // the timer still running and didn't start it.
+            if (!queue.isEmpty() && running.compareAndSet(false, true)) {
+                start();
+            }
+        }
+    }
+
+    private void flush() {
+        if (text.length() > 0) {
+            transcript.accept(text.toString());
+            text.setLength(0);
+        }
+    }
+}
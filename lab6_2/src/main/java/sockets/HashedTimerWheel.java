@@ -0,0 +1,194 @@
+package sockets;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A hashed timing wheel: a ring of buckets, one per tick, that a single
+ * thread walks one bucket per tick. Scheduling and cancelling cost O(1) and
+ * each tick only looks at one bucket, so hundreds of thousands of
+ * connection deadlines cost about the same as a handful. Deadlines are only
+ * as precise as the tick, which is plenty for timeouts measured in seconds.
+ *
+ * Any thread may schedule; new timeouts are handed to the wheel thread
+ * through a queue, so the buckets themselves are only ever touched by that
+ * thread. Tasks run on the wheel thread and must be quick, e.g. queueing a
+ * frame or closing a socket.
+ */
+public class HashedTimerWheel implements Runnable {
+    /**
+     * Work to do when a timeout expires.
+     */
+    public interface Task {
+        void run(Timeout timeout);
+    }
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+            .newUpdater(Timeout.class, "state");
+
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final LongAdder pending = new LongAdder();
+    private final long start = System.nanoTime();
+    // Ticks done so far; wheel thread only.
+    private long tick;
+
+    /**
+     * @param buckets rounded up to a power of two
+     */
+    public HashedTimerWheel(String name, long tick, TimeUnit unit, int buckets) {
+        this.tickNanos = Math.max(1, unit.toNanos(tick));
+        int size = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs {@code task} on the wheel thread once {@code delay} has passed,
+     * rounded up to the next tick.
+     */
+    public Timeout schedule(Task task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - start + unit.toNanos(Math.max(0, delay)));
+        pending.increment();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Timeouts that have been scheduled but have neither run nor been
+     * cancelled.
+     */
+    public long pending() {
+        return pending.sum();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = deadline - (System.nanoTime() - start)) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            transferAdded();
+            expire(tick & mask);
+            tick++;
+        }
+    }
+
+    /**
+     * Puts newly scheduled timeouts in their buckets. One due before the
+     * current tick, e.g. scheduled with no delay, goes in the current one.
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state != Timeout.PENDING) {
+                continue;
+            }
+            long due = Math.max(tick, (timeout.deadline + tickNanos - 1) / tickNanos);
+            timeout.rounds = (due - tick) / buckets.length;
+            int b = (int) (due & mask);
+            timeout.next = buckets[b];
+            if (buckets[b] != null) {
+                buckets[b].prev = timeout;
+            }
+            timeout.prev = null;
+            buckets[b] = timeout;
+        }
+    }
+
+    private void expire(long bucket) {
+        int b = (int) bucket;
+        Timeout timeout = buckets[b];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.state == Timeout.CANCELLED) {
+                unlink(b, timeout);
+            } else if (timeout.rounds <= 0) {
+                unlink(b, timeout);
+                if (timeout.expire()) {
+                    pending.decrement();
+                    try {
+                        timeout.task.run(timeout);
+                    } catch (RuntimeException ex) {
+                        Log.error("Timer task failed: {}", ex, ex);
+                        ServerMetrics.exception();
+                    }
+                }
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlink(int b, Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[b] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    /**
+     * A scheduled task. Cancelling only marks it; the wheel unlinks it the
+     * next time it passes its bucket.
+     */
+    public final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Task task;
+        // Nanoseconds after the wheel started.
+        private final long deadline;
+        // Not private, so the field updater can reach it.
+        volatile int state;
+        // Wheel thread only.
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Task task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the task has already run or been cancelled
+         */
+        public boolean cancel() {
+            if (STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                pending.decrement();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        private boolean expire() {
+            return STATE.compareAndSet(this, PENDING, EXPIRED);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package sockets;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds connections that have silently died. Every connection has one
+ * timeout on a shared {@link HashedTimerWheel}. When it fires, a client that
+ * has sent nothing for {@code --ping-interval} gets a
+ * {@link MessageStoC_Ping}, and one that has sent nothing for
+ * {@code --idle-timeout} is aborted, which ends its session the usual way.
+ * The timeout is then scheduled again for the next time something could
+ * change, so a busy client costs one timer firing per ping interval rather
+ * than one per message.
+ */
+public class Heartbeats {
+    private static final long TICK_MILLIS = 100;
+    private static final int BUCKETS = 512;
+    private static final Frame PING;
+
+    static {
+        try {
+            PING = Frame.of(new MessageStoC_Ping());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private final HashedTimerWheel wheel = new HashedTimerWheel("heartbeats", TICK_MILLIS, TimeUnit.MILLISECONDS,
+            BUCKETS);
+    private final long pingNanos;
+    private final long idleNanos;
+
+    public Heartbeats(ServerConfig config) {
+        this.pingNanos = config.pingIntervalMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(config.pingIntervalMillis)
+                : Long.MAX_VALUE;
+        this.idleNanos = config.idleTimeoutMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(config.idleTimeoutMillis)
+                : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return null if both pings and the idle timeout are turned off
+     */
+    public static Heartbeats start(ServerConfig config) {
+        if (config.pingIntervalMillis <= 0 && config.idleTimeoutMillis <= 0) {
+            return null;
+        }
+        return new Heartbeats(config);
+    }
+
+    public void watch(ClientConnectionData client) {
+        schedule(client, null, Math.min(pingNanos, idleNanos));
+    }
+
+    public void unwatch(ClientConnectionData client) {
+        HashedTimerWheel.Timeout timeout = client.heartbeat().getAndSet(null);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Timeouts waiting on the wheel, about one per connection.
+     */
+    public long pending() {
+        return wheel.pending();
+    }
+
+    private void schedule(ClientConnectionData client, HashedTimerWheel.Timeout current, long delayNanos) {
+        HashedTimerWheel.Timeout next = wheel.schedule(timeout -> check(client, timeout), delayNanos,
+                TimeUnit.NANOSECONDS);
+        // Lost to unwatch(), which may run at any time.
+        if (!client.heartbeat().compareAndSet(current, next)) {
+            next.cancel();
+        }
+    }
+
+    private void check(ClientConnectionData client, HashedTimerWheel.Timeout timeout) {
+        if (client.heartbeat().get() != timeout) {
+            return;
+        }
+        long idle = System.nanoTime() - client.getLastReadAt();
+        if (idle >= idleNanos) {
+            client.heartbeat().compareAndSet(timeout, null);
+            Log.warn("Dropping {} ({}), silent for {} ms", client.getName(), client.getUserName(),
+                    TimeUnit.NANOSECONDS.toMillis(idle));
+            ServerMetrics.reaped();
+            client.abort();
+            return;
+        }
+        long next;
+        if (idle >= pingNanos) {
+            client.sendFrame(PING);
+            next = Math.min(pingNanos, idleNanos - idle);
+        } else {
+            next = Math.min(pingNanos, idleNanos) - idle;
+        }
+        schedule(client, timeout, next);
+    }
+}
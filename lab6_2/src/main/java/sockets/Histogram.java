@@ -0,0 +1,128 @@
+package sockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative values, such as latencies in
+ * microseconds. Values below 256 are counted exactly; larger ones go into
+ * buckets 1/128 of their power of two wide, so every percentile is within
+ * 1% of the true value while the whole range of a long fits in a few
+ * thousand counters. Any thread may record at any time, at the cost of one
+ * atomic increment and two uncontended adder updates.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS) * SUB_COUNT + 2 * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Adds every value recorded in {@code other} to this histogram.
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * Moves everything recorded so far into a new histogram and starts this
+     * one over, e.g. to report one interval at a time. Values recorded while
+     * this runs land in one or the other, never both.
+     */
+    public Histogram drain() {
+        Histogram drained = new Histogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.getAndSet(i, 0);
+            if (c != 0) {
+                drained.counts.set(i, c);
+            }
+        }
+        drained.count.add(count.sumThenReset());
+        drained.sum.add(sum.sumThenReset());
+        drained.max.set(max.getAndSet(0));
+        return drained;
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / (double) n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the smallest value that at least {@code percentile} percent of
+     *         the recorded values are at or below, or 0 if nothing has been
+     *         recorded
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * The largest value that lands in bucket {@code i}.
+     */
+    private static long highestValue(int i) {
+        if (i < 2 * SUB_COUNT) {
+            return i;
+        }
+        int shift = i / SUB_COUNT - 1;
+        long sub = i % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
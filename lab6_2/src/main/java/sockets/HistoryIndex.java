@@ -0,0 +1,256 @@
+package sockets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over the history log. Every logged message is a document,
+ * numbered in log order, that remembers where its record is (segment and
+ * offset) and when it was sent. Each term, and each sender, maps to the
+ * ascending list of documents that contain it, so a query intersects a few
+ * sorted lists instead of scanning the log. A query needs at least one term
+ * or a sender; there is no list of every document to fall back on.
+ *
+ * The history appender adds documents as it writes them; queries run on
+ * other threads under the read lock.
+ */
+public class HistoryIndex {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<String, IntList> postings = new HashMap<>();
+    private final HashMap<String, IntList> bySender = new HashMap<>();
+
+    // Document d is stored at index d - docBase.
+    private int docBase;
+    private int docCount;
+    private long[] times = new long[1024];
+    private int[] segments = new int[1024];
+    private int[] offsets = new int[1024];
+
+    /**
+     * Where a matching message's record is in the log.
+     */
+    public static class Hit {
+        public final int segment;
+        public final int offset;
+
+        Hit(int segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * One page of matches, newest first, and how many matched in all.
+     */
+    public static class Page {
+        public final int total;
+        public final ArrayList<Hit> hits;
+
+        Page(int total, ArrayList<Hit> hits) {
+            this.total = total;
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * Splits text into lower case runs of letters and digits.
+     */
+    public static Set<String> terms(String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<>();
+        if (text == null) {
+            return terms;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    public void add(int segment, int offset, long time, MessageStoC_Chat chat) {
+        Set<String> terms = terms(chat.msg);
+        lock.writeLock().lock();
+        try {
+            int i = docCount - docBase;
+            if (i == times.length) {
+                int size = times.length * 2;
+                times = Arrays.copyOf(times, size);
+                segments = Arrays.copyOf(segments, size);
+                offsets = Arrays.copyOf(offsets, size);
+            }
+            times[i] = time;
+            segments[i] = segment;
+            offsets[i] = offset;
+            if (chat.sender != null) {
+                bySender.computeIfAbsent(chat.sender, s -> new IntList()).add(docCount);
+            }
+            for (String term : terms) {
+                postings.computeIfAbsent(term, t -> new IntList()).add(docCount);
+            }
+            docCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets every document in segments before {@code segment}, once those
+     * segments have been deleted.
+     */
+    public void dropBefore(int segment) {
+        lock.writeLock().lock();
+        try {
+            int drop = 0;
+            while (drop < docCount - docBase && segments[drop] < segment) {
+                drop++;
+            }
+            if (drop == 0) {
+                return;
+            }
+            int live = docCount - docBase - drop;
+            System.arraycopy(times, drop, times, 0, live);
+            System.arraycopy(segments, drop, segments, 0, live);
+            System.arraycopy(offsets, drop, offsets, 0, live);
+            docBase += drop;
+            postings.values().removeIf(list -> list.dropBelow(docBase));
+            bySender.values().removeIf(list -> list.dropBelow(docBase));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds messages containing every term of {@code text}, optionally only
+     * from {@code sender} and within [{@code from}, {@code to}] milliseconds,
+     * and returns matches {@code offset} to {@code offset + limit}, newest
+     * first. A query with neither terms nor a sender matches nothing; see
+     * {@link #isSearchable}.
+     */
+    public Page search(String text, String sender, long from, long to, int offset, int limit) {
+        Set<String> terms = terms(text);
+        lock.readLock().lock();
+        try {
+            IntList[] lists = new IntList[terms.size() + (sender == null ? 0 : 1)];
+            if (lists.length == 0) {
+                return new Page(0, new ArrayList<>());
+            }
+            int n = 0;
+            for (String term : terms) {
+                lists[n++] = postings.get(term);
+            }
+            if (sender != null) {
+                lists[n++] = bySender.get(sender);
+            }
+            for (IntList list : lists) {
+                if (list == null) {
+                    return new Page(0, new ArrayList<>());
+                }
+            }
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+            IntList candidates = lists[0];
+            for (int i = 1; i < lists.length; i++) {
+                candidates = candidates.intersect(lists[i]);
+            }
+
+            int total = 0;
+            ArrayList<Hit> hits = new ArrayList<>();
+            for (int c = candidates.size - 1; c >= 0; c--) {
+                int i = candidates.values[c] - docBase;
+                if (times[i] < from || times[i] > to) {
+                    continue;
+                }
+                if (total >= offset && hits.size() < limit) {
+                    hits.add(new Hit(segments[i], offsets[i]));
+                }
+                total++;
+            }
+            return new Page(total, hits);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Whether a query has anything to look up: at least one term, or a
+     * sender.
+     */
+    public static boolean isSearchable(String text, String sender) {
+        return sender != null || !terms(text).isEmpty();
+    }
+
+    public int documents() {
+        lock.readLock().lock();
+        try {
+            return docCount - docBase;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int terms() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Growable, ascending list of document numbers.
+     */
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+
+        IntList intersect(IntList other) {
+            IntList result = new IntList();
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                if (values[i] < other.values[j]) {
+                    i++;
+                } else if (values[i] > other.values[j]) {
+                    j++;
+                } else {
+                    result.add(values[i]);
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return true if nothing is left
+         */
+        boolean dropBelow(int min) {
+            int keep = 0;
+            while (keep < size && values[keep] < min) {
+                keep++;
+            }
+            if (keep > 0) {
+                values = Arrays.copyOfRange(values, keep, Math.max(keep + 4, size));
+                size -= keep;
+            }
+            return size == 0;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of public chat messages, kept in a directory of fixed-size
+ * segment files that are written through a memory map.
+ *
+ * Callers hand messages to {@link #append(MessageStoC_Chat)}, which only
+ * queues them; a single appender thread writes them out and forces the
+ * segment to disk at most every {@code --history-commit} milliseconds, so a
+ * crash of the machine loses at most that window. When a segment is full the
+ * log rolls over to a new one and deletes the oldest beyond
+ * {@code --history-segments}.
+ *
+ * Each record is an int length, an int CRC32 of the rest, a long timestamp
+ * in milliseconds and the message encoded by {@link MessageCodec}. Segments
+ * are zero filled, so a zero length marks the end of the data, and a record
+ * that fails its checksum is treated as the end of a torn write.
+ *
+ * The appender also keeps the last few messages of every room in memory,
+ * rebuilt from the segments at startup, which is what new members are sent,
+ * and adds every message to a {@link HistoryIndex} for searching. Searches
+ * run on a pool of their own and read their matches back from the segments.
+ */
+public class HistoryLog implements Runnable {
+    private static final int RECORD_HEADER = 16;
+    private static final String PREFIX = "history-";
+    private static final String SUFFIX = ".log";
+    private static final int MAX_SEARCH_RESULTS = 100;
+    // Room names come from clients, so the rooms with recent messages are
+    // capped as well as aged out.
+    private static final int MAX_RECENT_ROOMS = 10000;
+
+    private static final LongAdder appended = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder commits = new LongAdder();
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long commitNanos;
+    private final int replayMessages;
+    private final long replayMillis;
+    private final BlockingQueue<Entry> queue;
+    private final HistoryIndex index = new HistoryIndex();
+    private final ExecutorService searchPool;
+
+    // Owned by the appender thread.
+    private final ArrayDeque<Path> segments = new ArrayDeque<>();
+    private int nextSegment;
+    private int currentSegment;
+    private MappedByteBuffer segment;
+    private boolean dirty;
+
+    // Read-only maps of the segments searches have read from, and the oldest
+    // segment still kept; older maps are dropped as segments are deleted.
+    private final ConcurrentHashMap<Integer, MappedByteBuffer> readMaps = new ConcurrentHashMap<>();
+    private volatile int firstSegment;
+
+    // The last replayMessages messages of each room from the replay window,
+    // oldest first. Rooms are kept in the order they were last written to,
+    // so the ones with nothing left to replay are at the front.
+    private final LinkedHashMap<String, ArrayDeque<Entry>> recent = new LinkedHashMap<>();
+    private final ReentrantLock recentLock = new ReentrantLock();
+
+    private static class Entry {
+        final long time;
+        final MessageStoC_Chat chat;
+
+        Entry(long time, MessageStoC_Chat chat) {
+            this.time = time;
+            this.chat = chat;
+        }
+    }
+
+    public HistoryLog(ServerConfig config) throws IOException {
+        this.dir = Paths.get(config.historyDir);
+        this.segmentBytes = config.historySegmentBytes;
+        this.maxSegments = Math.max(1, config.historySegments);
+        this.commitNanos = TimeUnit.MILLISECONDS.toNanos(config.historyCommitMillis);
+        this.replayMessages = config.historyReplayMessages;
+        this.replayMillis = TimeUnit.MINUTES.toMillis(config.historyReplayMinutes);
+        this.queue = new ArrayBlockingQueue<>(config.historyQueue);
+        this.searchPool = Executors.newFixedThreadPool(config.searchThreads, r -> {
+            Thread t = new Thread(r, "history-search");
+            t.setDaemon(true);
+            return t;
+        });
+        ServerMetrics.monitor("history-search", searchPool);
+        Files.createDirectories(dir);
+        recover();
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "history-appender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a message for the log without blocking. If the appender has
+     * fallen that far behind, the message is left out of the history.
+     */
+    public void append(MessageStoC_Chat chat) {
+        if (!queue.offer(new Entry(System.currentTimeMillis(), chat))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * The messages a new member of the room should see: at most the last
+     * {@code --history-replay} messages from the last
+     * {@code --history-replay-minutes} minutes.
+     */
+    public MessageStoC_History replay(String room) {
+        long since = System.currentTimeMillis() - replayMillis;
+        ArrayList<MessageStoC_Chat> messages = new ArrayList<>();
+        recentLock.lock();
+        try {
+            forgetBefore(since);
+            ArrayDeque<Entry> entries = recent.get(room);
+            if (entries != null) {
+                for (Entry e : entries) {
+                    if (e.time >= since) {
+                        messages.add(e.chat);
+                    }
+                }
+            }
+        } finally {
+            recentLock.unlock();
+        }
+        return new MessageStoC_History(room, messages);
+    }
+
+    @Override
+    public void run() {
+        long commitDeadline = 0;
+        while (true) {
+            try {
+                Entry e = dirty ? queue.poll(commitDeadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                        : queue.take();
+                if (e != null) {
+                    write(e);
+                    remember(e);
+                    appended.increment();
+                    if (!dirty) {
+                        dirty = true;
+                        commitDeadline = System.nanoTime() + commitNanos;
+                    }
+                }
+                if (dirty && System.nanoTime() - commitDeadline >= 0) {
+                    commit();
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (IOException | RuntimeException ex) {
+                Log.error("History log caught exception: {}", ex, ex);
+                ServerMetrics.exception();
+            }
+        }
+    }
+
+    private void commit() {
+        segment.force();
+        dirty = false;
+        commits.increment();
+    }
+
+    private void write(Entry e) throws IOException {
+        MessageCodec.Writer payload = new MessageCodec.Writer(128);
+        MessageCodec.encode(e.chat, payload);
+        byte[] bytes = payload.toByteArray();
+        int length = 12 + bytes.length;
+        if (RECORD_HEADER + bytes.length > segmentBytes) {
+            throw new IOException("Message of " + bytes.length + " bytes is too big for a history segment");
+        }
+        if (segment.remaining() < RECORD_HEADER + bytes.length) {
+            roll();
+        }
+        int start = segment.position();
+        segment.position(start + 8);
+        segment.putLong(e.time);
+        segment.put(bytes);
+        ByteBuffer body = segment.duplicate();
+        body.position(start + 8).limit(start + 4 + length);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        // The length goes in last, so a reader never sees half a record.
+        segment.putInt(start + 4, (int) crc.getValue());
+        segment.putInt(start, length);
+        index.add(currentSegment, start, e.time, e.chat);
+    }
+
+    private void roll() throws IOException {
+        if (dirty) {
+            commit();
+        }
+        openSegment(segmentPath(nextSegment++), 0);
+        trim();
+    }
+
+    /**
+     * Deletes the oldest segments beyond the retention limit.
+     */
+    private void trim() throws IOException {
+        if (segments.size() <= maxSegments) {
+            return;
+        }
+        while (segments.size() > maxSegments) {
+            Files.deleteIfExists(segments.poll());
+        }
+        firstSegment = segmentNumber(segments.peek());
+        readMaps.keySet().removeIf(number -> number < firstSegment);
+        index.dropBefore(firstSegment);
+    }
+
+    private Path segmentPath(int number) {
+        return dir.resolve(String.format("%s%012d%s", PREFIX, number, SUFFIX));
+    }
+
+    private static int segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private void openSegment(Path path, int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        segment.position(position);
+        segments.add(path);
+        currentSegment = segmentNumber(path);
+    }
+
+    private void remember(Entry e) {
+        String room = e.chat.room == null ? RoomRegistry.DEFAULT_ROOM : e.chat.room;
+        long since = e.time - replayMillis;
+        recentLock.lock();
+        try {
+            // Taken out and put back to move the room to the end.
+            ArrayDeque<Entry> entries = recent.remove(room);
+            if (entries == null) {
+                entries = new ArrayDeque<>();
+            }
+            entries.add(e);
+            while (!entries.isEmpty() && (entries.size() > replayMessages || entries.peek().time < since)) {
+                entries.poll();
+            }
+            if (!entries.isEmpty()) {
+                recent.put(room, entries);
+            }
+            forgetBefore(since);
+        } finally {
+            recentLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the rooms whose newest message is older than {@code since}, and
+     * the least recently written ones beyond the cap. Those are all at the
+     * front, so this stops at the first room still worth keeping.
+     */
+    private void forgetBefore(long since) {
+        Iterator<ArrayDeque<Entry>> rooms = recent.values().iterator();
+        while (rooms.hasNext()) {
+            ArrayDeque<Entry> entries = rooms.next();
+            if (recent.size() <= MAX_RECENT_ROOMS && entries.peekLast().time >= since) {
+                break;
+            }
+            rooms.remove();
+        }
+    }
+
+    /**
+     * Reads the existing segments back in order to rebuild the recent
+     * messages, and positions the log after the last whole record.
+     */
+    private void recover() throws IOException {
+        List<Path> found;
+        try (Stream<Path> files = Files.list(dir)) {
+            found = files.filter(p -> p.getFileName().toString().startsWith(PREFIX)
+                    && p.getFileName().toString().endsWith(SUFFIX)).sorted().collect(Collectors.toList());
+        }
+        int records = 0;
+        int end = 0;
+        for (Path path : found) {
+            segments.add(path);
+            int number = segmentNumber(path);
+            nextSegment = number + 1;
+            byte[] data = Files.readAllBytes(path);
+            end = 0;
+            while (end + RECORD_HEADER <= data.length) {
+                Entry e = readRecord(data, end);
+                if (e == null) {
+                    break;
+                }
+                remember(e);
+                index.add(number, end, e.time, e.chat);
+                records++;
+                end += 4 + readInt(data, end);
+            }
+        }
+        if (found.isEmpty() || Files.size(found.get(found.size() - 1)) != segmentBytes) {
+            roll();
+        } else {
+            // Reopen the newest segment where its data ends.
+            segments.pollLast();
+            openSegment(found.get(found.size() - 1), end);
+        }
+        trim();
+        Log.info("History log: recovered {} messages from {} segments in {}", records, found.size(), dir);
+    }
+
+    /**
+     * Runs a search on the search pool and sends the results to the client.
+     */
+    public void search(MessageCtoS_Search m, ClientConnectionData client) {
+        searchPool.execute(() -> {
+            try {
+                long started = System.nanoTime();
+                int offset = Math.max(0, m.offset);
+                int limit = Math.max(0, Math.min(m.limit, MAX_SEARCH_RESULTS));
+                HistoryIndex.Page page = index.search(m.text, m.sender, m.from, m.to, offset, limit);
+                ArrayList<MessageStoC_Chat> messages = new ArrayList<>(page.hits.size());
+                ArrayList<Long> times = new ArrayList<>(page.hits.size());
+                for (HistoryIndex.Hit hit : page.hits) {
+                    Entry e = readAt(hit);
+                    if (e != null) {
+                        messages.add(e.chat);
+                        times.add(e.time);
+                    }
+                }
+                client.send(new MessageStoC_SearchResult(m.text, page.total, offset, messages, times));
+                Log.info("{} searched for \"{}\": {} matches", client.getUserName(), m.text, page.total);
+                Log.debug("Search took {} us", (System.nanoTime() - started) / 1000);
+            } catch (IOException | RuntimeException ex) {
+                Log.error("Search failed: {}", ex, ex);
+                ServerMetrics.exception();
+            }
+        });
+    }
+
+    /**
+     * Reads one record back from its segment, or returns null if the segment
+     * has been deleted since the search found it.
+     */
+    private Entry readAt(HistoryIndex.Hit hit) throws IOException {
+        MappedByteBuffer map = readMap(hit.segment);
+        if (map == null) {
+            return null;
+        }
+        ByteBuffer view = map.duplicate();
+        int length = view.getInt(hit.offset);
+        if (length < 12 || hit.offset + 4L + length > view.capacity()) {
+            return null;
+        }
+        byte[] record = new byte[4 + length];
+        view.position(hit.offset);
+        view.get(record);
+        return readRecord(record, 0);
+    }
+
+    /**
+     * Maps a segment for reading the first time a search needs it. The map
+     * shares the appender's pages, so it sees records written after it was
+     * made.
+     */
+    private MappedByteBuffer readMap(int number) throws IOException {
+        MappedByteBuffer map = readMaps.get(number);
+        if (map != null) {
+            return map;
+        }
+        if (number < firstSegment) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        MappedByteBuffer raced = readMaps.putIfAbsent(number, map);
+        // Lost to trim(), which has just deleted the segment.
+        if (number < firstSegment) {
+            readMaps.remove(number);
+        }
+        return raced != null ? raced : map;
+    }
+
+    private static Entry readRecord(byte[] data, int offset) {
+        int length = readInt(data, offset);
+        if (length < 12 || offset + 4 + length > data.length) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, offset + 8, length - 4);
+        if ((int) crc.getValue() != readInt(data, offset + 4)) {
+            return null;
+        }
+        long time = ((long) readInt(data, offset + 8) << 32) | (readInt(data, offset + 12) & 0xffffffffL);
+        try {
+            Message m = MessageCodec.decode(data, offset + RECORD_HEADER, length - 12);
+            return m instanceof MessageStoC_Chat ? new Entry(time, (MessageStoC_Chat) m) : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    public static String summary() {
+        return String.format("history: %d messages logged, %d dropped, %d commits", appended.sum(), dropped.sum(),
+                commits.sum());
+    }
+
+}
@@ -0,0 +1,51 @@
+package sockets;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide socket I/O counters, used to check that buffering and write
+ * coalescing keep the number of system calls per message low. Blocking
+ * writers count one write per flush; NIO connections count every channel
+ * read and write. Blocking reads go through a buffered stream and aren't
+ * counted, only the frames they decode.
+ */
+public class IoStats {
+    private static final LongAdder writes = new LongAdder();
+    private static final LongAdder framesWritten = new LongAdder();
+    private static final LongAdder reads = new LongAdder();
+    private static final LongAdder framesRead = new LongAdder();
+
+    public static void wrote(int frames) {
+        writes.increment();
+        framesWritten.add(frames);
+    }
+
+    public static void read() {
+        reads.increment();
+    }
+
+    public static void decoded(int frames) {
+        framesRead.add(frames);
+    }
+
+    public static long writes() {
+        return writes.sum();
+    }
+
+    public static long framesWritten() {
+        return framesWritten.sum();
+    }
+
+    public static long reads() {
+        return reads.sum();
+    }
+
+    public static long framesRead() {
+        return framesRead.sum();
+    }
+
+    public static String summary() {
+        return String.format("%d writes for %d frames, %d reads for %d frames", writes(), framesWritten(), reads(),
+                framesRead());
+    }
+}
@@ -0,0 +1,88 @@
+package sockets;
+
+/**
+ * Options for {@link LoadGenerator}, parsed from {@code --name=value}
+ * arguments. Rates are per second, over all simulated users together.
+ */
+public class LoadConfig {
+    public String host = "localhost";
+    public int port = ChatServer.PORT;
+    public int users = 1000;
+    public double connectRate = 200;
+    public double messageRate = 100;
+    public double dmRatio = 0.1;
+    public double churnRate = 0;
+    public int messageBytes = 64;
+    public int durationSeconds = 60;
+    public int drainSeconds = 5;
+    public int reportSeconds = 5;
+    public int connectThreads = 16;
+    public int sendThreads = 4;
+    public String namePrefix = "bot";
+    public boolean compress = false;
+
+    public static LoadConfig parse(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            config.set(name, value);
+        }
+        return config;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "host":
+                host = value;
+                break;
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "users":
+                users = Integer.parseInt(value);
+                break;
+            case "connect-rate":
+                connectRate = Double.parseDouble(value);
+                break;
+            case "message-rate":
+                messageRate = Double.parseDouble(value);
+                break;
+            case "dm-ratio":
+                dmRatio = Double.parseDouble(value);
+                break;
+            case "churn-rate":
+                churnRate = Double.parseDouble(value);
+                break;
+            case "message-bytes":
+                messageBytes = Integer.parseInt(value);
+                break;
+            case "duration":
+                durationSeconds = Integer.parseInt(value);
+                break;
+            case "drain":
+                drainSeconds = Integer.parseInt(value);
+                break;
+            case "report":
+                reportSeconds = Integer.parseInt(value);
+                break;
+            case "connect-threads":
+                connectThreads = Integer.parseInt(value);
+                break;
+            case "send-threads":
+                sendThreads = Integer.parseInt(value);
+                break;
+            case "name-prefix":
+                namePrefix = value;
+                break;
+            case "compress":
+                compress = Boolean.parseBoolean(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package sockets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator. Simulates many chat users against a running
+ * server, speaking the same protocol as the GUI client, and reports
+ * end-to-end delivery latency, throughput and failures.
+ *
+ * Users connect at a fixed rate until all of them have been started, then
+ * the run lasts for the configured duration. Chats are sent at a fixed rate
+ * from random online users, a share of them as private messages to another
+ * random user, and users leave and are replaced at the churn rate.
+ *
+ * Every chat carries the {@link System#nanoTime()} at which it was due to
+ * be sent. All users live in this one process, so whoever receives it can
+ * tell how long delivery took, including any time the chat spent waiting for
+ * a send thread. How far sends fell behind schedule is reported separately,
+ * so a saturated generator can be told apart from a slow server.
+ */
+public class LoadGenerator {
+    private static final long TICK_MILLIS = 10;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READER_STACK_BYTES = 256 * 1024;
+
+    private final LoadConfig config;
+    private final String padding;
+    private final ExecutorService connectPool;
+    private final ExecutorService sendPool;
+    private final AtomicInteger nextBot = new AtomicInteger();
+    // Every bot with a socket, and the welcomed ones chats are sent between.
+    private final Set<Bot> bots = ConcurrentHashMap.newKeySet();
+    private final ArrayList<Bot> online = new ArrayList<>();
+    private volatile boolean stopping;
+
+    // Latencies are in microseconds.
+    private final Histogram latency = new Histogram();
+    private final Histogram intervalLatency = new Histogram();
+    private final Histogram joinLatency = new Histogram();
+    private final Histogram sendLag = new Histogram();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+    private final LongAdder quit = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sentDirect = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder deliveredDirect = new LongAdder();
+    private final LongAdder listRequests = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator(LoadConfig.parse(args)).run();
+    }
+
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+        StringBuilder text = new StringBuilder();
+        while (text.length() < config.messageBytes - 20) {
+            text.append("lorem ipsum ");
+        }
+        padding = text.toString();
+        connectPool = Executors.newFixedThreadPool(config.connectThreads, daemonThreads("load-connect"));
+        sendPool = Executors.newFixedThreadPool(config.sendThreads, daemonThreads("load-send"));
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    public void run() throws InterruptedException {
+        System.out.printf("Simulating %d users against %s:%d: %.0f joins/s, %.0f chats/s (%.0f%% private), "
+                + "%.1f users/s churn, for %d s after the ramp%n", config.users, config.host, config.port,
+                config.connectRate, config.messageRate, config.dmRatio * 100, config.churnRate,
+                config.durationSeconds);
+        long start = System.nanoTime();
+        long rampEnd = 0;
+        long launched = 0;
+        long scheduled = 0;
+        long churned = 0;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(config.reportSeconds);
+        long[] lastCounts = new long[2];
+        while (true) {
+            long now = System.nanoTime();
+            double elapsed = (now - start) / 1e9;
+            while (launched < config.users && launched < elapsed * config.connectRate) {
+                connectPool.execute(this::connect);
+                launched++;
+            }
+            if (rampEnd == 0 && launched == config.users) {
+                rampEnd = now;
+            }
+            long due = (long) (elapsed * config.messageRate);
+            for (; scheduled < due; scheduled++) {
+                long sendAt = start + (long) (scheduled * 1e9 / config.messageRate);
+                sendPool.execute(() -> sendChat(sendAt));
+            }
+            if (rampEnd != 0) {
+                long churnDue = (long) ((now - rampEnd) / 1e9 * config.churnRate);
+                for (; churned < churnDue; churned++) {
+                    connectPool.execute(this::churn);
+                }
+                if (now - rampEnd >= TimeUnit.SECONDS.toNanos(config.durationSeconds)) {
+                    break;
+                }
+            }
+            if (now >= nextReport) {
+                System.out.println(intervalReport((now - start) / 1_000_000_000, lastCounts));
+                nextReport += TimeUnit.SECONDS.toNanos(config.reportSeconds);
+            }
+            Thread.sleep(TICK_MILLIS);
+        }
+
+        // Let chats already queued go out and arrive before everyone leaves.
+        sendPool.shutdown();
+        sendPool.awaitTermination(config.drainSeconds, TimeUnit.SECONDS);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.drainSeconds));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        stopping = true;
+        connectPool.shutdownNow();
+        for (Bot bot : bots) {
+            bot.quit();
+        }
+        Thread.sleep(1000);
+        for (Bot bot : bots) {
+            bot.close();
+        }
+        System.out.println(summary(seconds));
+    }
+
+    private void connect() {
+        Bot bot = new Bot(config.namePrefix + nextBot.incrementAndGet());
+        started.increment();
+        try {
+            bot.connect();
+        } catch (IOException ex) {
+            if (!stopping) {
+                connectFailures.increment();
+            }
+            bot.close();
+        }
+    }
+
+    /**
+     * Replaces a random online user with a new one.
+     */
+    private void churn() {
+        Bot bot = randomOnline(null);
+        if (bot != null) {
+            bot.quit();
+            connect();
+        }
+    }
+
+    private void sendChat(long sendAt) {
+        Bot from = randomOnline(null);
+        if (from == null) {
+            skipped.increment();
+            return;
+        }
+        Bot to = null;
+        if (ThreadLocalRandom.current().nextDouble() < config.dmRatio) {
+            to = randomOnline(from);
+        }
+        sendLag.record((System.nanoTime() - sendAt) / 1000);
+        String text = sendAt + " " + padding;
+        if (from.send(new MessageCtoS_Chat(from.name, to == null ? null : to.name, text))) {
+            sent.increment();
+            if (to != null) {
+                sentDirect.increment();
+            }
+        }
+    }
+
+    private void delivered(Bot bot, MessageStoC_Chat chat) {
+        if (bot.name.equals(chat.sender) || chat.msg == null) {
+            return;
+        }
+        int space = chat.msg.indexOf(' ');
+        long sentAt;
+        try {
+            sentAt = Long.parseLong(space < 0 ? chat.msg : chat.msg.substring(0, space));
+        } catch (NumberFormatException ex) {
+            // Not one of ours.
+            return;
+        }
+        long micros = (System.nanoTime() - sentAt) / 1000;
+        latency.record(micros);
+        intervalLatency.record(micros);
+        delivered.increment();
+        if (bot.name.equals(chat.recipient)) {
+            deliveredDirect.increment();
+        }
+    }
+
+    private void online(Bot bot) {
+        synchronized (online) {
+            bot.index = online.size();
+            online.add(bot);
+        }
+    }
+
+    private void offline(Bot bot) {
+        synchronized (online) {
+            if (bot.index < 0) {
+                return;
+            }
+            Bot last = online.remove(online.size() - 1);
+            if (last != bot) {
+                online.set(bot.index, last);
+                last.index = bot.index;
+            }
+            bot.index = -1;
+        }
+    }
+
+    /**
+     * @return a random online bot other than {@code exclude}, or null if
+     *         there is none
+     */
+    private Bot randomOnline(Bot exclude) {
+        synchronized (online) {
+            int n = online.size();
+            if (n == 0 || (n == 1 && online.get(0) == exclude)) {
+                return null;
+            }
+            while (true) {
+                Bot bot = online.get(ThreadLocalRandom.current().nextInt(n));
+                if (bot != exclude) {
+                    return bot;
+                }
+            }
+        }
+    }
+
+    private long failures() {
+        return connectFailures.sum() + denied.sum() + dropped.sum() + sendFailures.sum();
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private String intervalReport(long second, long[] lastCounts) {
+        Histogram interval = intervalLatency.drain();
+        long sentNow = sent.sum();
+        long deliveredNow = delivered.sum();
+        double seconds = config.reportSeconds;
+        String report = String.format(
+                "%4ds: online %d, sent %.0f/s, delivered %.0f/s, latency p50 %.2f ms p99 %.2f ms "
+                        + "p999 %.2f ms max %.2f ms, failures %d",
+                second, onlineCount(), (sentNow - lastCounts[0]) / seconds,
+                (deliveredNow - lastCounts[1]) / seconds, millis(interval.percentile(50)),
+                millis(interval.percentile(99)), millis(interval.percentile(99.9)), millis(interval.max()),
+                failures());
+        lastCounts[0] = sentNow;
+        lastCounts[1] = deliveredNow;
+        return report;
+    }
+
+    private int onlineCount() {
+        synchronized (online) {
+            return online.size();
+        }
+    }
+
+    public String summary(double seconds) {
+        return String.format("Finished after %.1f s%n"
+                + "Users: %d started, %d joined, %d left%n"
+                + "Chats: %d sent (%d private), %.0f/s; %d skipped with nobody online%n"
+                + "Deliveries: %d (%d private), %.0f/s; %d private chats not delivered%n"
+                + "Delivery latency: p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms, mean %.2f ms%n"
+                + "Join latency: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n"
+                + "Send lag: p99 %.2f ms, max %.2f ms%n"
+                + "User list requests after missed presence updates: %d%n"
+                + "Throttle notices (chats dropped by the server's rate limit): %d%n"
+                + "Failures: %d connect, %d denied, %d dropped by the server, %d sends",
+                seconds, started.sum(), joined.sum(), quit.sum(), sent.sum(), sentDirect.sum(),
+                sent.sum() / seconds, skipped.sum(), delivered.sum(), deliveredDirect.sum(),
+                delivered.sum() / seconds, sentDirect.sum() - deliveredDirect.sum(),
+                millis(latency.percentile(50)), millis(latency.percentile(99)),
+                millis(latency.percentile(99.9)), millis(latency.max()), latency.mean() / 1000,
+                millis(joinLatency.percentile(50)), millis(joinLatency.percentile(99)),
+                millis(joinLatency.max()), millis(sendLag.percentile(99)), millis(sendLag.max()),
+                listRequests.sum(), throttled.sum(), connectFailures.sum(), denied.sum(), dropped.sum(),
+                sendFailures.sum());
+    }
+
+    /**
+     * One simulated user: a connection and a thread reading from it.
+     */
+    private class Bot implements Runnable {
+        final String name;
+        private Socket socket;
+        private DataOutputStream out;
+        private MessageFrames.Input in;
+        private long joinSentAt;
+        private boolean welcomed;
+        private long presenceVersion = -1;
+        private boolean resyncing;
+        private volatile boolean leaving;
+        // Position in the online list, or -1; guarded by the list.
+        int index = -1;
+
+        Bot(String name) {
+            this.name = name;
+        }
+
+        void connect() throws IOException {
+            bots.add(this);
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(config.host, config.port), CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new MessageFrames.Input(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+            joinSentAt = System.nanoTime();
+            synchronized (this) {
+                MessageFrames.write(out, new MessageCtoS_Join(name, config.compress));
+            }
+            Thread reader = new Thread(null, this, "load-" + name, READER_STACK_BYTES);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * @return false if the message couldn't be written
+         */
+        synchronized boolean send(Message m) {
+            try {
+                MessageFrames.write(out, m);
+                return true;
+            } catch (IOException ex) {
+                if (!leaving) {
+                    sendFailures.increment();
+                }
+                return false;
+            }
+        }
+
+        void quit() {
+            if (leaving) {
+                return;
+            }
+            leaving = true;
+            offline(this);
+            if (out != null && send(new MessageCtoS_Quit())) {
+                quit.increment();
+            }
+        }
+
+        void close() {
+            bots.remove(this);
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException ex) {
+            }
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    Message m = in.read();
+                    if (m instanceof MessageStoC_Chat) {
+                        delivered(this, (MessageStoC_Chat) m);
+                    } else if (m instanceof MessageStoC_Presence) {
+                        processPresence((MessageStoC_Presence) m);
+                    } else if (m instanceof MessageStoC_List) {
+                        presenceVersion = ((MessageStoC_List) m).version;
+                        resyncing = false;
+                    } else if (m instanceof MessageStoC_Welcome) {
+                        if (!welcomed && name.equals(((MessageStoC_Welcome) m).userName)) {
+                            welcomed = true;
+                            joinLatency.record((System.nanoTime() - joinSentAt) / 1000);
+                            joined.increment();
+                            if (!leaving) {
+                                online(this);
+                            }
+                        }
+                    } else if (m instanceof MessageStoC_Throttled) {
+                        throttled.increment();
+                    } else if (m instanceof MessageStoC_Ping) {
+                        send(new MessageCtoS_Pong());
+                    } else if (m instanceof MessageStoC_Denied) {
+                        if (!welcomed) {
+                            denied.increment();
+                            leaving = true;
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+            } finally {
+                offline(this);
+                if (!leaving && !stopping) {
+                    dropped.increment();
+                }
+                close();
+            }
+        }
+
+        private void processPresence(MessageStoC_Presence m) {
+            if (resyncing || m.version <= presenceVersion) {
+                return;
+            }
+            if (m.version != presenceVersion + 1) {
+                // Missed an update; ask for the whole list like the GUI does.
+                resyncing = true;
+                listRequests.increment();
+                send(new MessageCtoS_List());
+                return;
+            }
+            presenceVersion = m.version;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package sockets;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log. Callers pass a template with {@code {}} placeholders and
+ * up to three arguments; the event is stored unformatted in a fixed ring
+ * buffer, and a single appender thread formats it and writes it to standard
+ * output. The thread that logs never builds a string, takes a lock or waits
+ * for the console. If the ring is full the event is dropped and counted
+ * instead.
+ *
+ * Arguments are formatted later on the appender thread, so only pass values
+ * that won't change afterwards: strings, numbers and messages that have been
+ * sent. A {@link Throwable} left over after the placeholders are filled is
+ * printed with its stack trace.
+ *
+ * High-frequency events, such as one per chat message, go through
+ * {@link #sampled}, which logs a random one in {@code --log-sample} of them
+ * and costs a single volatile read when their level is off.
+ */
+public class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 16 * 1024;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private static volatile Level level = Level.INFO;
+    private static volatile int sampleRate = 100;
+
+    private static final Event[] ring = new Event[CAPACITY];
+    // Next sequence number to hand out, and the next the appender will read.
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    // Everything before this has been written and flushed.
+    private static volatile long flushed;
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Event();
+        }
+        Thread appender = new Thread(Log::append, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    public static void configure(ServerConfig config) {
+        level = config.logLevel;
+        sampleRate = Math.max(1, config.logSampleRate);
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l.compareTo(level) >= 0;
+    }
+
+    public static void debug(String template) {
+        log(Level.DEBUG, false, template, 0, null, null, null);
+    }
+
+    public static void debug(String template, Object a) {
+        log(Level.DEBUG, false, template, 1, a, null, null);
+    }
+
+    public static void debug(String template, Object a, Object b) {
+        log(Level.DEBUG, false, template, 2, a, b, null);
+    }
+
+    public static void info(String template) {
+        log(Level.INFO, false, template, 0, null, null, null);
+    }
+
+    public static void info(String template, Object a) {
+        log(Level.INFO, false, template, 1, a, null, null);
+    }
+
+    public static void info(String template, Object a, Object b) {
+        log(Level.INFO, false, template, 2, a, b, null);
+    }
+
+    public static void info(String template, Object a, Object b, Object c) {
+        log(Level.INFO, false, template, 3, a, b, c);
+    }
+
+    public static void warn(String template) {
+        log(Level.WARN, false, template, 0, null, null, null);
+    }
+
+    public static void warn(String template, Object a) {
+        log(Level.WARN, false, template, 1, a, null, null);
+    }
+
+    public static void warn(String template, Object a, Object b) {
+        log(Level.WARN, false, template, 2, a, b, null);
+    }
+
+    public static void warn(String template, Object a, Object b, Object c) {
+        log(Level.WARN, false, template, 3, a, b, c);
+    }
+
+    public static void error(String template, Object a) {
+        log(Level.ERROR, false, template, 1, a, null, null);
+    }
+
+    public static void error(String template, Object a, Object b) {
+        log(Level.ERROR, false, template, 2, a, b, null);
+    }
+
+    public static void error(String template, Object a, Object b, Object c) {
+        log(Level.ERROR, false, template, 3, a, b, c);
+    }
+
+    /**
+     * Logs about one in every {@code --log-sample} calls, picked at random so
+     * no counter is shared between threads.
+     */
+    public static void sampled(Level l, String template, Object a) {
+        if (isEnabled(l) && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0)) {
+            log(l, true, template, 1, a, null, null);
+        }
+    }
+
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Waits, for at most a second, until everything logged so far has been
+     * written, e.g. before the JVM exits.
+     */
+    public static void flush() {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (flushed < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    private static void log(Level l, boolean sampled, String template, int argc, Object a, Object b, Object c) {
+        if (!isEnabled(l)) {
+            return;
+        }
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        Event e = ring[(int) seq & MASK];
+        e.level = l;
+        e.sampled = sampled;
+        e.time = System.currentTimeMillis();
+        e.thread = Thread.currentThread().getName();
+        e.template = template;
+        e.argc = argc;
+        e.a = a;
+        e.b = b;
+        e.c = c;
+        // Publishes the event to the appender.
+        e.sequence = seq;
+    }
+
+    private static void append() {
+        Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 64 * 1024);
+        StringBuilder line = new StringBuilder(256);
+        long next = 0;
+        long reportedDrops = 0;
+        while (true) {
+            Event e = ring[(int) next & MASK];
+            if (e.sequence != next) {
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    line.setLength(0);
+                    line.append(TIME.format(Instant.now())).append(" WARN  [log-appender] Dropped ")
+                            .append(drops - reportedDrops).append(" log events with the buffer full\n");
+                    reportedDrops = drops;
+                    write(out, line);
+                }
+                try {
+                    out.flush();
+                } catch (IOException ex) {
+                }
+                flushed = next;
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            line.setLength(0);
+            format(e, line);
+            e.template = null;
+            e.a = null;
+            e.b = null;
+            e.c = null;
+            e.thread = null;
+            next++;
+            consumed = next;
+            write(out, line);
+        }
+    }
+
+    private static void write(Writer out, StringBuilder line) {
+        try {
+            out.append(line);
+        } catch (IOException ex) {
+        }
+    }
+
+    private static void format(Event e, StringBuilder line) {
+        line.append(TIME.format(Instant.ofEpochMilli(e.time))).append(' ');
+        String name = e.level.name();
+        line.append(name);
+        for (int i = name.length(); i < 6; i++) {
+            line.append(' ');
+        }
+        line.append('[').append(e.thread).append("] ");
+        int used = 0;
+        String t = e.template;
+        int start = 0;
+        int at;
+        while (used < e.argc && (at = t.indexOf("{}", start)) >= 0) {
+            line.append(t, start, at).append(arg(e, used++));
+            start = at + 2;
+        }
+        line.append(t, start, t.length());
+        if (e.sampled) {
+            line.append(" (sampled 1 in ").append(sampleRate).append(')');
+        }
+        line.append('\n');
+        if (used < e.argc && arg(e, used) instanceof Throwable) {
+            StringWriter trace = new StringWriter();
+            ((Throwable) arg(e, used)).printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+    }
+
+    private static Object arg(Event e, int i) {
+        return i == 0 ? e.a : i == 1 ? e.b : e.c;
+    }
+
+    /**
+     * One slot in the ring, reused for every event that lands in it.
+     */
+    private static class Event {
+        volatile long sequence = -1;
+        Level level;
+        boolean sampled;
+        long time;
+        String thread;
+        String template;
+        int argc;
+        Object a;
+        Object b;
+        Object c;
+    }
+}
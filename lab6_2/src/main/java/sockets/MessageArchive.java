@@ -0,0 +1,71 @@
+package sockets;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lines that have scrolled out of the message view, kept in a temporary file
+ * that is deleted on exit. Only the file offset of each line stays in memory,
+ * so scroll-back can load any range of them again.
+ */
+public class MessageArchive implements Closeable {
+    private final File file;
+    private final DataOutputStream out;
+    private final RandomAccessFile in;
+    private long[] offsets = new long[1024];
+    private int count;
+    private long length;
+
+    public MessageArchive() throws IOException {
+        file = File.createTempFile("chat-", ".archive");
+        file.deleteOnExit();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        in = new RandomAccessFile(file, "r");
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void append(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        offsets[count++] = length;
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        length += 4 + bytes.length;
+    }
+
+    /**
+     * Reads lines {@code from} up to {@code to} back.
+     */
+    public List<String> read(int from, int to) throws IOException {
+        out.flush();
+        ArrayList<String> lines = new ArrayList<>(to - from);
+        in.seek(offsets[from]);
+        for (int i = from; i < to; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            lines.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+        in.close();
+        file.delete();
+    }
+}
@@ -0,0 +1,523 @@
+package sockets;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Hand-written binary encoding for every message type. A payload is a one
+ * byte type tag followed by the message's fields; strings are an int byte
+ * count (-1 for null) followed by UTF-8 bytes.
+ */
+public class MessageCodec {
+    public static final byte CTOS_JOIN = 1;
+    public static final byte CTOS_CHAT = 2;
+    public static final byte CTOS_LIST = 3;
+    public static final byte CTOS_KICK = 4;
+    public static final byte CTOS_QUIT = 5;
+    public static final byte CTOS_JOIN_ROOM = 6;
+    public static final byte CTOS_LEAVE_ROOM = 7;
+    public static final byte CTOS_LIST_ROOMS = 8;
+    public static final byte CTOS_SEARCH = 9;
+    public static final byte CTOS_PONG = 10;
+
+    public static final byte STOC_WELCOME = 32;
+    public static final byte STOC_CHAT = 33;
+    public static final byte STOC_LIST = 34;
+    public static final byte STOC_KICK = 35;
+    public static final byte STOC_EXIT = 36;
+    public static final byte STOC_DENIED = 37;
+    public static final byte STOC_PRESENCE = 38;
+    public static final byte STOC_ROOM = 39;
+    public static final byte STOC_ROOM_LIST = 40;
+    public static final byte STOC_HISTORY = 41;
+    public static final byte STOC_SEARCH_RESULT = 42;
+    public static final byte STOC_BATCH = 43;
+    public static final byte STOC_PING = 44;
+    public static final byte STOC_THROTTLED = 45;
+
+    public static final byte STOS_HELLO = 64;
+    public static final byte STOS_ENVELOPE = 65;
+
+    // Messages inside a message: a batch's frames, or an envelope's payload.
+    // Every level costs a stack frame, so a hostile frame can't go deep.
+    private static final int MAX_NESTING = 2;
+
+    /**
+     * Encodes a whole frame: the length header followed by the payload.
+     */
+    public static byte[] encodeFrame(Message m) throws IOException {
+        Writer out = new Writer(64);
+        out.writeInt(0);
+        encode(m, out);
+        return out.finishFrame();
+    }
+
+    public static void encode(Message m, Writer out) throws IOException {
+        if (m instanceof MessageCtoS_Join) {
+            out.writeByte(CTOS_JOIN);
+            out.writeString(((MessageCtoS_Join) m).userName);
+            out.writeBoolean(((MessageCtoS_Join) m).compress);
+        } else if (m instanceof MessageCtoS_Chat) {
+            MessageCtoS_Chat chat = (MessageCtoS_Chat) m;
+            out.writeByte(CTOS_CHAT);
+            out.writeString(chat.sender);
+            out.writeString(chat.recipient);
+            out.writeString(chat.msg);
+            out.writeString(chat.room);
+        } else if (m instanceof MessageCtoS_List) {
+            out.writeByte(CTOS_LIST);
+        } else if (m instanceof MessageCtoS_Kick) {
+            MessageCtoS_Kick kick = (MessageCtoS_Kick) m;
+            out.writeByte(CTOS_KICK);
+            out.writeString(kick.sendingUser);
+            out.writeString(kick.targetUser);
+        } else if (m instanceof MessageCtoS_Quit) {
+            out.writeByte(CTOS_QUIT);
+        } else if (m instanceof MessageCtoS_JoinRoom) {
+            out.writeByte(CTOS_JOIN_ROOM);
+            out.writeString(((MessageCtoS_JoinRoom) m).room);
+        } else if (m instanceof MessageCtoS_LeaveRoom) {
+            out.writeByte(CTOS_LEAVE_ROOM);
+            out.writeString(((MessageCtoS_LeaveRoom) m).room);
+        } else if (m instanceof MessageCtoS_ListRooms) {
+            out.writeByte(CTOS_LIST_ROOMS);
+        } else if (m instanceof MessageCtoS_Search) {
+            MessageCtoS_Search search = (MessageCtoS_Search) m;
+            out.writeByte(CTOS_SEARCH);
+            out.writeString(search.text);
+            out.writeString(search.sender);
+            out.writeLong(search.from);
+            out.writeLong(search.to);
+            out.writeInt(search.offset);
+            out.writeInt(search.limit);
+        } else if (m instanceof MessageCtoS_Pong) {
+            out.writeByte(CTOS_PONG);
+        } else if (m instanceof MessageStoC_Welcome) {
+            out.writeByte(STOC_WELCOME);
+            out.writeString(((MessageStoC_Welcome) m).userName);
+        } else if (m instanceof MessageStoC_Chat) {
+            MessageStoC_Chat chat = (MessageStoC_Chat) m;
+            out.writeByte(STOC_CHAT);
+            out.writeString(chat.sender);
+            out.writeString(chat.recipient);
+            out.writeString(chat.msg);
+            out.writeString(chat.room);
+        } else if (m instanceof MessageStoC_List) {
+            ArrayList<String> users = ((MessageStoC_List) m).users;
+            out.writeByte(STOC_LIST);
+            out.writeLong(((MessageStoC_List) m).version);
+            out.writeInt(users.size());
+            for (int i = 0; i < users.size(); i++) {
+                out.writeString(users.get(i));
+            }
+        } else if (m instanceof MessageStoC_Kick) {
+            MessageStoC_Kick kick = (MessageStoC_Kick) m;
+            out.writeByte(STOC_KICK);
+            out.writeString(kick.sendingUser);
+            out.writeString(kick.targetUser);
+        } else if (m instanceof MessageStoC_Exit) {
+            out.writeByte(STOC_EXIT);
+            out.writeString(((MessageStoC_Exit) m).userName);
+        } else if (m instanceof MessageStoC_Denied) {
+            out.writeByte(STOC_DENIED);
+            out.writeString(((MessageStoC_Denied) m).reason);
+        } else if (m instanceof MessageStoC_Presence) {
+            MessageStoC_Presence presence = (MessageStoC_Presence) m;
+            out.writeByte(STOC_PRESENCE);
+            out.writeLong(presence.version);
+            out.writeString(presence.userName);
+            out.writeBoolean(presence.joined);
+        } else if (m instanceof MessageStoC_Room) {
+            MessageStoC_Room room = (MessageStoC_Room) m;
+            out.writeByte(STOC_ROOM);
+            out.writeString(room.room);
+            out.writeString(room.userName);
+            out.writeBoolean(room.joined);
+        } else if (m instanceof MessageStoC_RoomList) {
+            MessageStoC_RoomList list = (MessageStoC_RoomList) m;
+            out.writeByte(STOC_ROOM_LIST);
+            out.writeInt(list.rooms.size());
+            for (int i = 0; i < list.rooms.size(); i++) {
+                out.writeString(list.rooms.get(i));
+                out.writeInt(list.members.get(i));
+            }
+        } else if (m instanceof MessageStoC_History) {
+            MessageStoC_History history = (MessageStoC_History) m;
+            out.writeByte(STOC_HISTORY);
+            out.writeString(history.room);
+            out.writeInt(history.messages.size());
+            for (int i = 0; i < history.messages.size(); i++) {
+                encode(history.messages.get(i), out);
+            }
+        } else if (m instanceof MessageStoC_SearchResult) {
+            MessageStoC_SearchResult result = (MessageStoC_SearchResult) m;
+            out.writeByte(STOC_SEARCH_RESULT);
+            out.writeString(result.text);
+            out.writeInt(result.total);
+            out.writeInt(result.offset);
+            out.writeInt(result.messages.size());
+            for (int i = 0; i < result.messages.size(); i++) {
+                out.writeLong(result.times.get(i));
+                encode(result.messages.get(i), out);
+            }
+        } else if (m instanceof MessageStoC_Ping) {
+            out.writeByte(STOC_PING);
+        } else if (m instanceof MessageStoC_Throttled) {
+            out.writeByte(STOC_THROTTLED);
+            out.writeLong(((MessageStoC_Throttled) m).retryAfterMillis);
+        } else if (m instanceof MessageStoS_Hello) {
+            out.writeByte(STOS_HELLO);
+            out.writeString(((MessageStoS_Hello) m).nodeId);
+        } else if (m instanceof MessageStoS_Envelope) {
+            MessageStoS_Envelope envelope = (MessageStoS_Envelope) m;
+            out.writeByte(STOS_ENVELOPE);
+            out.writeString(envelope.origin);
+            out.writeLong(envelope.id);
+            out.writeLong(envelope.sentAtMicros);
+            encode(envelope.payload, out);
+        } else {
+            throw new IOException("No encoding for " + m.getClass());
+        }
+    }
+
+    public static Message decode(byte[] buf, int offset, int length) throws IOException {
+        return decode(buf, offset, length, 0);
+    }
+
+    /**
+     * Decodes a frame sent by a client, which may only be one of the
+     * client-to-server messages.
+     */
+    public static Message decodeFromClient(byte[] buf, int offset, int length) throws IOException {
+        if (length > 0 && (buf[offset] < CTOS_JOIN || buf[offset] >= STOC_WELCOME)) {
+            throw new IOException("Clients can't send message type " + buf[offset]);
+        }
+        return decode(buf, offset, length, 0);
+    }
+
+    private static Message decode(byte[] buf, int offset, int length, int depth) throws IOException {
+        Reader in = new Reader(buf, offset, length);
+        Message m = decode(in, depth);
+        if (in.remaining() != 0) {
+            throw new IOException("Trailing bytes in frame of type " + buf[offset]);
+        }
+        return m;
+    }
+
+    public static Message decode(Reader in) throws IOException {
+        return decode(in, 0);
+    }
+
+    private static Message decode(Reader in, int depth) throws IOException {
+        if (depth > MAX_NESTING) {
+            throw new IOException("Messages nested more than " + MAX_NESTING + " deep");
+        }
+        byte tag = in.readByte();
+        switch (tag) {
+            case CTOS_JOIN:
+                // Clients from before compression send just the name.
+                return new MessageCtoS_Join(in.readString(), in.remaining() > 0 && in.readBoolean());
+            case CTOS_CHAT:
+                return new MessageCtoS_Chat(in.readString(), in.readString(), in.readString(), in.readString());
+            case CTOS_LIST:
+                return new MessageCtoS_List();
+            case CTOS_KICK:
+                return new MessageCtoS_Kick(in.readString(), in.readString());
+            case CTOS_QUIT:
+                return new MessageCtoS_Quit();
+            case CTOS_JOIN_ROOM:
+                return new MessageCtoS_JoinRoom(in.readString());
+            case CTOS_LEAVE_ROOM:
+                return new MessageCtoS_LeaveRoom(in.readString());
+            case CTOS_LIST_ROOMS:
+                return new MessageCtoS_ListRooms();
+            case CTOS_SEARCH:
+                return new MessageCtoS_Search(in.readString(), in.readString(), in.readLong(), in.readLong(),
+                        in.readInt(), in.readInt());
+            case CTOS_PONG:
+                return new MessageCtoS_Pong();
+            case STOC_WELCOME:
+                return new MessageStoC_Welcome(in.readString());
+            case STOC_CHAT:
+                return new MessageStoC_Chat(in.readString(), in.readString(), in.readString(), in.readString());
+            case STOC_LIST: {
+                long version = in.readLong();
+                int count = in.readCount();
+                ArrayList<String> users = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    users.add(in.readString());
+                }
+                return new MessageStoC_List(version, users);
+            }
+            case STOC_KICK:
+                return new MessageStoC_Kick(in.readString(), in.readString());
+            case STOC_EXIT:
+                return new MessageStoC_Exit(in.readString());
+            case STOC_DENIED:
+                return new MessageStoC_Denied(in.readString());
+            case STOC_PRESENCE:
+                return new MessageStoC_Presence(in.readLong(), in.readString(), in.readBoolean());
+            case STOC_ROOM:
+                return new MessageStoC_Room(in.readString(), in.readString(), in.readBoolean());
+            case STOC_ROOM_LIST: {
+                int count = in.readCount();
+                ArrayList<String> rooms = new ArrayList<>(count);
+                ArrayList<Integer> members = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    rooms.add(in.readString());
+                    members.add(in.readInt());
+                }
+                return new MessageStoC_RoomList(rooms, members);
+            }
+            case STOC_HISTORY: {
+                String room = in.readString();
+                int count = in.readCount();
+                ArrayList<MessageStoC_Chat> messages = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    messages.add(readChat(in));
+                }
+                return new MessageStoC_History(room, messages);
+            }
+            case STOC_SEARCH_RESULT: {
+                String text = in.readString();
+                int total = in.readInt();
+                int offset = in.readInt();
+                int count = in.readCount();
+                ArrayList<MessageStoC_Chat> messages = new ArrayList<>(count);
+                ArrayList<Long> times = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    times.add(in.readLong());
+                    messages.add(readChat(in));
+                }
+                return new MessageStoC_SearchResult(text, total, offset, messages, times);
+            }
+            case STOC_BATCH:
+                return readBatch(in, depth);
+            case STOC_PING:
+                return new MessageStoC_Ping();
+            case STOC_THROTTLED:
+                return new MessageStoC_Throttled(in.readLong());
+            case STOS_HELLO:
+                return new MessageStoS_Hello(in.readString());
+            case STOS_ENVELOPE: {
+                String origin = in.readString();
+                long id = in.readLong();
+                long sentAtMicros = in.readLong();
+                if (in.peekByte() == STOS_ENVELOPE) {
+                    throw new IOException("Nested envelope");
+                }
+                return new MessageStoS_Envelope(origin, id, sentAtMicros, decode(in, depth + 1));
+            }
+            default:
+                throw new IOException("Unknown message type " + tag);
+        }
+    }
+
+    /**
+     * Inflates a batch and decodes the frames in it. Batches don't nest.
+     */
+    private static MessageStoC_Batch readBatch(Reader in, int depth) throws IOException {
+        int rawBytes = in.readInt();
+        byte[] raw = in.readInflated(rawBytes);
+        ArrayList<Message> messages = new ArrayList<>();
+        int at = 0;
+        while (at < raw.length) {
+            Reader header = new Reader(raw, at, raw.length - at);
+            int length = header.readInt();
+            MessageFrames.checkLength(length);
+            header.require(length);
+            if (length > 0 && raw[at + MessageFrames.HEADER_LENGTH] == STOC_BATCH) {
+                throw new IOException("Nested batch");
+            }
+            messages.add(decode(raw, at + MessageFrames.HEADER_LENGTH, length, depth + 1));
+            at += MessageFrames.HEADER_LENGTH + length;
+        }
+        return new MessageStoC_Batch(messages);
+    }
+
+    /**
+     * Reads a chat inside a history or search result. Only chats can appear
+     * there, so this doesn't go back through decode.
+     */
+    private static MessageStoC_Chat readChat(Reader in) throws IOException {
+        byte tag = in.readByte();
+        if (tag != STOC_CHAT) {
+            throw new IOException("Expected a chat message but got type " + tag);
+        }
+        return new MessageStoC_Chat(in.readString(), in.readString(), in.readString(), in.readString());
+    }
+
+    /**
+     * Growable big-endian byte buffer.
+     */
+    public static class Writer {
+        private byte[] buf;
+        private int pos;
+
+        public Writer(int initialSize) {
+            buf = new byte[initialSize];
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+            }
+        }
+
+        public void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        public void writeBoolean(boolean b) {
+            writeByte(b ? 1 : 0);
+        }
+
+        public void writeInt(int v) {
+            ensure(4);
+            buf[pos++] = (byte) (v >>> 24);
+            buf[pos++] = (byte) (v >>> 16);
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) v;
+        }
+
+        public void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        public void writeString(String s) {
+            if (s == null) {
+                writeInt(-1);
+                return;
+            }
+            // Chat text is mostly ASCII, which can be copied without building
+            // an intermediate byte array.
+            int length = s.length();
+            ensure(4 + length);
+            int start = pos + 4;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                    writeInt(utf8.length);
+                    ensure(utf8.length);
+                    System.arraycopy(utf8, 0, buf, pos, utf8.length);
+                    pos += utf8.length;
+                    return;
+                }
+                buf[start + i] = (byte) c;
+            }
+            writeInt(length);
+            pos += length;
+        }
+
+        public int size() {
+            return pos;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        /**
+         * Fills in the length header reserved at the start of the buffer and
+         * returns the frame.
+         */
+        byte[] finishFrame() throws IOException {
+            int length = pos - MessageFrames.HEADER_LENGTH;
+            MessageFrames.checkLength(length);
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+        }
+    }
+
+    /**
+     * Bounds-checked reader over part of a byte array.
+     */
+    public static class Reader {
+        private final byte[] buf;
+        private int pos;
+        private final int limit;
+
+        public Reader(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.limit = offset + length;
+        }
+
+        private void require(int n) throws IOException {
+            if (n < 0 || limit - pos < n) {
+                throw new IOException("Truncated frame");
+            }
+        }
+
+        public int remaining() {
+            return limit - pos;
+        }
+
+        public byte readByte() throws IOException {
+            require(1);
+            return buf[pos++];
+        }
+
+        public byte peekByte() throws IOException {
+            require(1);
+            return buf[pos];
+        }
+
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        public int readInt() throws IOException {
+            require(4);
+            int v = ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16) | ((buf[pos + 2] & 0xff) << 8)
+                    | (buf[pos + 3] & 0xff);
+            pos += 4;
+            return v;
+        }
+
+        public long readLong() throws IOException {
+            return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+        }
+
+        /**
+         * Reads an element count, rejecting counts the rest of the frame could
+         * not possibly hold.
+         */
+        public int readCount() throws IOException {
+            int count = readInt();
+            if (count < 0 || count > remaining()) {
+                throw new IOException("Bad element count " + count);
+            }
+            return count;
+        }
+
+        /**
+         * Inflates the rest of the frame, which must come to exactly
+         * {@code rawBytes}.
+         */
+        public byte[] readInflated(int rawBytes) throws IOException {
+            byte[] raw = Compression.decompress(buf, pos, limit - pos, rawBytes);
+            pos = limit;
+            return raw;
+        }
+
+        public String readString() throws IOException {
+            int length = readInt();
+            if (length == -1) {
+                return null;
+            }
+            require(length);
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -2,9 +2,16 @@ package sockets;
 
 public class MessageCtoS_Join extends Message {
     public String userName;
+    // Whether the client can read compressed batches.
+    public boolean compress;
 
     public MessageCtoS_Join(String userName) {
+        this(userName, false);
+    }
+
+    public MessageCtoS_Join(String userName, boolean compress) {
         this.userName = userName;
+        this.compress = compress;
     }
 
 }
@@ -0,0 +1,13 @@
+package sockets;
+
+public class MessageCtoS_JoinRoom extends Message {
+    public String room;
+
+    public MessageCtoS_JoinRoom(String room) {
+        this.room = room;
+    }
+
+    public String toString() {
+        return "Join room " + room;
+    }
+}
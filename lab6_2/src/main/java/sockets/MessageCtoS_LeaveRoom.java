@@ -0,0 +1,13 @@
+package sockets;
+
+public class MessageCtoS_LeaveRoom extends Message {
+    public String room;
+
+    public MessageCtoS_LeaveRoom(String room) {
+        this.room = room;
+    }
+
+    public String toString() {
+        return "Leave room " + room;
+    }
+}
@@ -0,0 +1,4 @@
+package sockets;
+
+public class MessageCtoS_ListRooms extends Message {
+}
@@ -0,0 +1,5 @@
+package sockets;
+
+public class MessageCtoS_Pong extends Message {
+
+}
@@ -0,0 +1,29 @@
+package sockets;
+
+/**
+ * Moderator search of the chat history. Every word of {@code text} must
+ * appear in a match; a null sender matches anyone, and matches are limited to
+ * [{@code from}, {@code to}] milliseconds since the epoch.
+ */
+public class MessageCtoS_Search extends Message {
+    public String text;
+    public String sender;
+    public long from;
+    public long to;
+    public int offset;
+    public int limit;
+
+    public MessageCtoS_Search(String text, String sender, long from, long to, int offset, int limit) {
+        this.text = text;
+        this.sender = sender;
+        this.from = from;
+        this.to = to;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    public String toString() {
+        return "Search for \"" + text + "\"" + (sender == null ? "" : " from " + sender) + ", results " + offset
+                + " to " + (offset + limit);
+    }
+}
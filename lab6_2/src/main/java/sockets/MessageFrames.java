@@ -0,0 +1,104 @@
+package sockets;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Length-prefixed framing shared by the server engines and the clients.
+ * Every frame on the wire is a 4 byte big-endian payload length followed by
+ * the payload, so a non-blocking reader can tell when a whole message has
+ * arrived without parsing it. Payloads are encoded by {@link MessageCodec}.
+ */
+public class MessageFrames {
+    public static final int HEADER_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    public static byte[] encodeFrame(Message m) throws IOException {
+        return MessageCodec.encodeFrame(m);
+    }
+
+    public static Message decode(byte[] payload, int offset, int length) throws IOException {
+        return MessageCodec.decode(payload, offset, length);
+    }
+
+    public static Message decodeFromClient(byte[] payload, int offset, int length) throws IOException {
+        return MessageCodec.decodeFromClient(payload, offset, length);
+    }
+
+    public static void write(DataOutputStream out, Message m) throws IOException {
+        out.write(encodeFrame(m));
+        out.flush();
+    }
+
+    public static Message read(DataInputStream in) throws IOException {
+        return read(in, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Reads one frame, rejecting any longer than {@code maxLength} before
+     * allocating room for it.
+     */
+    public static Message read(DataInputStream in, int maxLength) throws IOException {
+        byte[] payload = readPayload(in, maxLength);
+        return decode(payload, 0, payload.length);
+    }
+
+    /**
+     * Reads one frame's payload without decoding it, with the same limit.
+     */
+    public static byte[] readPayload(DataInputStream in, int maxLength) throws IOException {
+        byte[] payload = new byte[readLength(in, maxLength)];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Reads one frame's length header, with the same limit.
+     */
+    public static int readLength(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length > maxLength) {
+            throw new IOException("Frame of " + length + " bytes is over the " + maxLength + " byte limit");
+        }
+        checkLength(length);
+        return length;
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length: " + length);
+        }
+    }
+
+    /**
+     * A client's view of the server's frames. Compressed batches are unpacked
+     * here, so callers see one message at a time whether or not compression
+     * was negotiated.
+     */
+    public static class Input {
+        private final DataInputStream in;
+        private final ArrayDeque<Message> unpacked = new ArrayDeque<>();
+
+        public Input(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Blocks until the next message arrives.
+         */
+        public Message read() throws IOException {
+            Message m = unpacked.poll();
+            if (m != null) {
+                return m;
+            }
+            m = MessageFrames.read(in);
+            if (m instanceof MessageStoC_Batch) {
+                unpacked.addAll(((MessageStoC_Batch) m).messages);
+                return read();
+            }
+            return m;
+        }
+    }
+}
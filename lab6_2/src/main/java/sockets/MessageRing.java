@@ -0,0 +1,120 @@
+package sockets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javafx.collections.ObservableListBase;
+
+/**
+ * An observable list of lines held in a circular array, so lines can be
+ * added at either end and dropped from the front without shifting the rest.
+ * Each call fires a single change, however many lines it moves. FX thread
+ * only, like the list view showing it.
+ */
+public class MessageRing extends ObservableListBase<String> {
+    private String[] lines = new String[64];
+    private int head;
+    private int size;
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+        return lines[(head + index) & (lines.length - 1)];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public void addLast(List<String> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        ensureCapacity(size + added.size());
+        beginChange();
+        for (int i = 0; i < added.size(); i++) {
+            lines[(head + size + i) & (lines.length - 1)] = added.get(i);
+        }
+        size += added.size();
+        nextAdd(size - added.size(), size);
+        endChange();
+    }
+
+    public void addFirst(List<String> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        ensureCapacity(size + added.size());
+        beginChange();
+        head = (head - added.size()) & (lines.length - 1);
+        for (int i = 0; i < added.size(); i++) {
+            lines[(head + i) & (lines.length - 1)] = added.get(i);
+        }
+        size += added.size();
+        nextAdd(0, added.size());
+        endChange();
+    }
+
+    /**
+     * Drops the first {@code n} lines, if there are that many.
+     *
+     * @return the lines dropped, oldest first
+     */
+    public List<String> removeFirst(int n) {
+        n = Math.max(0, Math.min(n, size));
+        ArrayList<String> removed = new ArrayList<>(n);
+        if (n == 0) {
+            return removed;
+        }
+        beginChange();
+        for (int i = 0; i < n; i++) {
+            int at = (head + i) & (lines.length - 1);
+            removed.add(lines[at]);
+            lines[at] = null;
+        }
+        head = (head + n) & (lines.length - 1);
+        size -= n;
+        nextRemove(0, removed);
+        endChange();
+        return removed;
+    }
+
+    /**
+     * Drops the last {@code n} lines.
+     */
+    public void removeLast(int n) {
+        n = Math.max(0, Math.min(n, size));
+        if (n == 0) {
+            return;
+        }
+        beginChange();
+        ArrayList<String> removed = new ArrayList<>(n);
+        for (int i = size - n; i < size; i++) {
+            int at = (head + i) & (lines.length - 1);
+            removed.add(lines[at]);
+            lines[at] = null;
+        }
+        size -= n;
+        nextRemove(size, removed);
+        endChange();
+    }
+
+    // Grows to the next power of two, unwrapping the lines to the start.
+    private void ensureCapacity(int needed) {
+        if (needed <= lines.length) {
+            return;
+        }
+        int capacity = Integer.highestOneBit(needed - 1) << 1;
+        String[] grown = new String[capacity];
+        for (int i = 0; i < size; i++) {
+            grown[i] = lines[(head + i) & (lines.length - 1)];
+        }
+        Arrays.fill(lines, null);
+        lines = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,20 @@
+package sockets;
+
+import java.util.ArrayList;
+
+/**
+ * Several frames sent as one compressed block to a client that asked for
+ * compression when it joined. Clients never act on the batch itself; see
+ * {@link MessageFrames.Input}, which hands its messages out one at a time.
+ */
+public class MessageStoC_Batch extends Message {
+    public ArrayList<Message> messages;
+
+    public MessageStoC_Batch(ArrayList<Message> messages) {
+        this.messages = messages;
+    }
+
+    public String toString() {
+        return "Batch of " + messages.size() + " messages";
+    }
+}
@@ -4,16 +4,24 @@ public class MessageStoC_Chat extends Message {
     public String sender;
     public String recipient;
     public String msg;
+    // The room a public message is for; null means the default room.
+    public String room;
     public boolean publicMsg;
 
     public MessageStoC_Chat(String sender, String recipient, String msg) {
+        this(sender, recipient, msg, null);
+    }
+
+    public MessageStoC_Chat(String sender, String recipient, String msg, String room) {
         this.sender = sender;
         this.recipient = recipient;
         this.msg = msg;
+        this.room = room;
         publicMsg = recipient == null || recipient.equals("Everyone");
     }
 
     public String toString() {
-        return sender + " says \"" + msg + "\" to " + (publicMsg ? "everyone" : recipient);
+        return sender + " says \"" + msg + "\" to " + (publicMsg ? "everyone" : recipient)
+                + (room == null ? "" : " in " + room);
     }
 }
\ No newline at end of file
@@ -0,0 +1,14 @@
+package sockets;
+
+public class MessageStoC_Denied extends Message {
+    public String reason;
+
+    public MessageStoC_Denied(String reason) {
+        this.reason = reason;
+    }
+
+    public String toString() {
+        return "Denied: " + reason;
+    }
+
+}
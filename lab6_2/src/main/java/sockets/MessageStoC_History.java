@@ -0,0 +1,21 @@
+package sockets;
+
+import java.util.ArrayList;
+
+/**
+ * Recent public messages in a room, oldest first, sent in one batch when a
+ * user enters the room.
+ */
+public class MessageStoC_History extends Message {
+    public String room;
+    public ArrayList<MessageStoC_Chat> messages;
+
+    public MessageStoC_History(String room, ArrayList<MessageStoC_Chat> messages) {
+        this.room = room;
+        this.messages = messages;
+    }
+
+    public String toString() {
+        return messages.size() + " earlier messages in " + room;
+    }
+}
@@ -3,13 +3,16 @@ package sockets;
 import java.util.ArrayList;
 
 public class MessageStoC_List extends Message {
+    // The presence version this list is a snapshot of.
+    public long version;
     public ArrayList<String> users;
 
-    public MessageStoC_List(ArrayList<String> users) {
+    public MessageStoC_List(long version, ArrayList<String> users) {
+        this.version = version;
         this.users = users;
     }
 
     public String toString() {
-        return "List of currently connected users:\n" + users;
+        return "List of currently connected users (version " + version + "):\n" + users;
     }
 }
@@ -0,0 +1,9 @@
+package sockets;
+
+/**
+ * Sent to a client that has been quiet for a while. The client answers with
+ * a {@link MessageCtoS_Pong}, which shows the connection is still alive.
+ */
+public class MessageStoC_Ping extends Message {
+
+}
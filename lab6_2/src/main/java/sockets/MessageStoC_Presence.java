@@ -0,0 +1,21 @@
+package sockets;
+
+/**
+ * One change to the user list. Versions go up by one with every change, so a
+ * client that sees a gap knows it missed one and asks for the whole list.
+ */
+public class MessageStoC_Presence extends Message {
+    public long version;
+    public String userName;
+    public boolean joined;
+
+    public MessageStoC_Presence(long version, String userName, boolean joined) {
+        this.version = version;
+        this.userName = userName;
+        this.joined = joined;
+    }
+
+    public String toString() {
+        return "Presence " + version + ": " + userName + (joined ? " joined" : " left");
+    }
+}
@@ -0,0 +1,21 @@
+package sockets;
+
+/**
+ * Someone joined or left a room. Sent to everyone in the room, including the
+ * user who joined or left.
+ */
+public class MessageStoC_Room extends Message {
+    public String room;
+    public String userName;
+    public boolean joined;
+
+    public MessageStoC_Room(String room, String userName, boolean joined) {
+        this.room = room;
+        this.userName = userName;
+        this.joined = joined;
+    }
+
+    public String toString() {
+        return userName + (joined ? " joined " : " left ") + room;
+    }
+}
@@ -0,0 +1,18 @@
+package sockets;
+
+import java.util.ArrayList;
+
+public class MessageStoC_RoomList extends Message {
+    public ArrayList<String> rooms;
+    // Number of members in each room, in the same order as rooms.
+    public ArrayList<Integer> members;
+
+    public MessageStoC_RoomList(ArrayList<String> rooms, ArrayList<Integer> members) {
+        this.rooms = rooms;
+        this.members = members;
+    }
+
+    public String toString() {
+        return "List of rooms:\n" + rooms;
+    }
+}
@@ -0,0 +1,28 @@
+package sockets;
+
+import java.util.ArrayList;
+
+/**
+ * One page of search matches, newest first. {@code times[i]} is when
+ * {@code messages[i]} was sent.
+ */
+public class MessageStoC_SearchResult extends Message {
+    public String text;
+    public int total;
+    public int offset;
+    public ArrayList<MessageStoC_Chat> messages;
+    public ArrayList<Long> times;
+
+    public MessageStoC_SearchResult(String text, int total, int offset, ArrayList<MessageStoC_Chat> messages,
+            ArrayList<Long> times) {
+        this.text = text;
+        this.total = total;
+        this.offset = offset;
+        this.messages = messages;
+        this.times = times;
+    }
+
+    public String toString() {
+        return "Results " + offset + " to " + (offset + messages.size()) + " of " + total + " for \"" + text + "\"";
+    }
+}
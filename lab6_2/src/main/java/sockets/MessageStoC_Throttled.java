@@ -0,0 +1,19 @@
+package sockets;
+
+/**
+ * Tells a client its chats are being dropped because it has gone over its
+ * rate limit. Sent once when throttling starts, not for every dropped chat.
+ */
+public class MessageStoC_Throttled extends Message {
+    // How long until a chat would be let through again, or -1 for one too
+    // big to ever be.
+    public long retryAfterMillis;
+
+    public MessageStoC_Throttled(long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public String toString() {
+        return retryAfterMillis < 0 ? "Throttled: message too large" : "Throttled for " + retryAfterMillis + " ms";
+    }
+}
@@ -0,0 +1,24 @@
+package sockets;
+
+/**
+ * A message forwarded from one cluster node to another. Ids go up by one per
+ * origin node, so a receiver can drop anything it has already seen.
+ */
+public class MessageStoS_Envelope extends Message {
+    public String origin;
+    public long id;
+    // Wall clock time the origin sent it, in microseconds since the epoch.
+    public long sentAtMicros;
+    public Message payload;
+
+    public MessageStoS_Envelope(String origin, long id, long sentAtMicros, Message payload) {
+        this.origin = origin;
+        this.id = id;
+        this.sentAtMicros = sentAtMicros;
+        this.payload = payload;
+    }
+
+    public String toString() {
+        return "Envelope " + origin + "#" + id + ": " + payload;
+    }
+}
@@ -0,0 +1,16 @@
+package sockets;
+
+/**
+ * First message on a cluster link, naming the node at the other end.
+ */
+public class MessageStoS_Hello extends Message {
+    public String nodeId;
+
+    public MessageStoS_Hello(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public String toString() {
+        return "Hello from " + nodeId;
+    }
+}
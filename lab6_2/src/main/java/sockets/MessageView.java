@@ -0,0 +1,243 @@
+package sockets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javafx.application.Platform;
+import javafx.scene.control.IndexedCell;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.skin.VirtualFlow;
+
+/**
+ * The chat transcript. Lines are shown in a {@link ListView}, which only
+ * lays out and renders the cells on screen and reuses them as the list
+ * scrolls, so adding a line costs the same an hour into a session as it did
+ * at the start.
+ *
+ * Every line is written to a {@link MessageArchive} as it arrives, and the
+ * list holds only a window of them in a {@link MessageRing}: the most recent
+ * {@link #RECENT_LINES} while the user follows the conversation, and at most
+ * {@link #MAX_LINES} while they scroll back. Reaching either end of the
+ * window loads the next page from the archive and drops one from the other
+ * end. A user reading scroll-back isn't moved when new lines arrive; the
+ * window only follows the conversation again once they scroll down to it.
+ * FX thread only.
+ */
+public class MessageView {
+    public static final int RECENT_LINES = 1000;
+    public static final int MAX_LINES = 4 * RECENT_LINES;
+    private static final int PAGE_LINES = 200;
+
+    private final ListView<String> list = new ListView<>();
+    private final MessageRing lines = new MessageRing();
+    private MessageArchive archive;
+    // Line number of the first line in the window, and of the line after the
+    // newest one.
+    private int first;
+    private int total;
+    private VirtualFlow<?> flow;
+    // Whether the newest line was in sight at the last layout. Lines added
+    // since then aren't laid out yet, so the flow can't tell.
+    private boolean following = true;
+    // Lines were added while following and the next layout must end with
+    // the newest one in sight.
+    private boolean scrolling;
+    private final Runnable laidOut = this::laidOut;
+
+    public MessageView() {
+        list.setItems(lines);
+        list.setCellFactory(param -> new MessageCell());
+        list.setFocusTraversable(false);
+        try {
+            archive = new MessageArchive();
+        } catch (IOException ex) {
+            System.out.println("No scroll-back archive, old messages will be dropped: " + ex);
+        }
+        list.sceneProperty().addListener((observable, oldScene, scene) -> {
+            if (oldScene != null) {
+                oldScene.removePostLayoutPulseListener(laidOut);
+            }
+            if (scene != null) {
+                scene.addPostLayoutPulseListener(laidOut);
+            }
+        });
+        // The flow exists once the list has a skin.
+        list.skinProperty().addListener((observable, oldSkin, newSkin) -> {
+            flow = (VirtualFlow<?>) list.lookup(".virtual-flow");
+            if (flow != null) {
+                flow.positionProperty().addListener((o, oldPosition, position) -> {
+                    if (position.doubleValue() <= 0 && first > 0) {
+                        Platform.runLater(this::loadOlder);
+                    } else if (position.doubleValue() >= 1 && first + lines.size() < total) {
+                        Platform.runLater(this::loadNewer);
+                    }
+                });
+            }
+        });
+    }
+
+    public ListView<String> getNode() {
+        return list;
+    }
+
+    /**
+     * Adds text at the bottom, one line per line of text, and keeps the
+     * newest line in sight if the user was already at the bottom.
+     */
+    public void append(String text) {
+        ArrayList<String> added = new ArrayList<>();
+        int start = 0;
+        int end;
+        while ((end = text.indexOf('\n', start)) >= 0) {
+            added.add(text.substring(start, end));
+            start = end + 1;
+        }
+        if (start < text.length()) {
+            added.add(text.substring(start));
+        }
+        archive(added);
+        // Without an archive nothing can be loaded back, so the window
+        // always stays at the end.
+        boolean atEnd = archive == null || first + lines.size() == total;
+        total += added.size();
+        if (!atEnd) {
+            // The user is reading older lines; these are loaded when they
+            // scroll down to them.
+            return;
+        }
+        if (!following && archive != null && lines.size() + added.size() > MAX_LINES) {
+            return;
+        }
+        lines.addLast(added);
+        int excess = lines.size() - (following ? RECENT_LINES : MAX_LINES);
+        if (excess > 0) {
+            lines.removeFirst(excess);
+            first += excess;
+        }
+        if (following) {
+            list.scrollTo(lines.size() - 1);
+            scrolling = true;
+        }
+    }
+
+    public void close() {
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (IOException ex) {
+            }
+            archive = null;
+        }
+    }
+
+    private void archive(List<String> added) {
+        if (archive == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < added.size(); i++) {
+                archive.append(added.get(i));
+            }
+        } catch (IOException ex) {
+            System.out.println("Couldn't archive messages, scroll-back is off: " + ex);
+            close();
+        }
+    }
+
+    /**
+     * The list's scrollTo puts a line at the top and then clamps on
+     * estimated cell heights, which can leave the newest line just out of
+     * sight. Once laid out the flow knows the real heights and can bring it
+     * fully into view.
+     */
+    private void laidOut() {
+        if (scrolling) {
+            scrolling = false;
+            if (flow != null && !isAtBottom()) {
+                flow.scrollTo(lines.size() - 1);
+            }
+        } else {
+            following = isAtBottom();
+        }
+    }
+
+    private boolean isAtBottom() {
+        if (flow == null || lines.isEmpty() || flow.getPosition() >= 1) {
+            return true;
+        }
+        IndexedCell<?> last = flow.getLastVisibleCell();
+        return last != null && last.getIndex() >= lines.size() - 1;
+    }
+
+    /**
+     * Line number of the line at the top of the screen.
+     */
+    private int topLine() {
+        IndexedCell<?> top = flow == null ? null : flow.getFirstVisibleCell();
+        return first + (top == null ? 0 : top.getIndex());
+    }
+
+    /**
+     * Puts the page of lines before the window at its top, dropping lines
+     * from the bottom if the window would grow past its limit.
+     */
+    private void loadOlder() {
+        if (first == 0 || archive == null) {
+            return;
+        }
+        int top = topLine();
+        int from = Math.max(0, first - PAGE_LINES);
+        try {
+            lines.addFirst(archive.read(from, first));
+        } catch (IOException ex) {
+            System.out.println("Couldn't load older messages: " + ex);
+            return;
+        }
+        first = from;
+        lines.removeLast(lines.size() - MAX_LINES);
+        list.scrollTo(top - first);
+    }
+
+    /**
+     * Puts the page of lines after the window at its bottom, dropping lines
+     * from the top if the window would grow past its limit.
+     */
+    private void loadNewer() {
+        int end = first + lines.size();
+        if (end >= total || archive == null) {
+            return;
+        }
+        int top = topLine();
+        try {
+            lines.addLast(archive.read(end, Math.min(total, end + PAGE_LINES)));
+        } catch (IOException ex) {
+            System.out.println("Couldn't load newer messages: " + ex);
+            return;
+        }
+        int excess = lines.size() - MAX_LINES;
+        if (excess > 0) {
+            lines.removeFirst(excess);
+            first += excess;
+        }
+        list.scrollTo(Math.max(0, top - first));
+    }
+
+    /**
+     * A reusable cell that wraps its line to the width of the list.
+     */
+    private class MessageCell extends ListCell<String> {
+        MessageCell() {
+            setWrapText(true);
+            prefWidthProperty().bind(list.widthProperty().subtract(20));
+            setMaxWidth(USE_PREF_SIZE);
+        }
+
+        @Override
+        protected void updateItem(String line, boolean empty) {
+            super.updateItem(line, empty);
+            setText(empty ? null : line);
+        }
+    }
+}
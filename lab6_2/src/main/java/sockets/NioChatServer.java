@@ -0,0 +1,79 @@
+package sockets;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Selector based server engine. The calling thread accepts connections and
+ * hashes each one onto one of {@code config.eventLoops} event loops, which
+ * then do all of the reading, writing and protocol handling for it. The
+ * accept loop never blocks on anything but accept: the join handshake happens
+ * on the event loop, and reverse DNS, if enabled, on a separate pool.
+ */
+public class NioChatServer {
+    private final ServerConfig config;
+    private final ClientRegistry clients;
+    private final RoomRegistry rooms;
+    private final NioEventLoop[] loops;
+    private final ExecutorService resolver;
+    private long nextConnectionId = 0;
+
+    public NioChatServer(ServerConfig config, ClientRegistry clients, RoomRegistry rooms) throws IOException {
+        this.config = config;
+        this.clients = clients;
+        this.rooms = rooms;
+        this.resolver = config.reverseDns ? Executors.newFixedThreadPool(2) : null;
+        this.loops = new NioEventLoop[Math.max(1, config.eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(config.readBudgetFrames, config.readBufferBytes,
+                    config.handshakeTimeoutMillis);
+        }
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].start("nio-loop-" + i);
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(config.port), config.acceptBacklog);
+            Log.info("Chat Server started with {} event loops.", loops.length);
+            Log.info("Local IP: {}", Inet4Address.getLocalHost().getHostAddress());
+            Log.info("Local Port: {}", serverChannel.socket().getLocalPort());
+
+            while (true) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    long acceptedAt = System.nanoTime();
+                    AcceptMetrics.accepted();
+                    channel.configureBlocking(false);
+                    Socket socket = channel.socket();
+                    Log.info("Connected to {}:{} on local port {}", socket.getInetAddress(), socket.getPort(),
+                            socket.getLocalPort());
+
+                    String name = socket.getInetAddress().getHostAddress();
+                    NioEventLoop loop = loops[Math.floorMod(Long.hashCode(nextConnectionId++), loops.length)];
+                    NioClientConnectionData client = new NioClientConnectionData(channel, loop, name, config);
+                    client.setAcceptedAt(acceptedAt);
+                    client.setListener(new ChatServerSocketListener(client, clients, rooms));
+                    if (resolver != null) {
+                        client.resolveName(resolver);
+                    }
+                    loop.register(client);
+                }
+
+                // prevent exceptions from causing server from exiting.
+                catch (IOException ex) {
+                    Log.error("Accept failed: {}", ex.getMessage());
+                    ServerMetrics.exception();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection owned by one {@link NioEventLoop}. Reads, decoding and
+ * protocol handling happen on the loop thread; {@link #sendFrame(Frame)} may be
+ * called from any thread and hands the frame over to the loop for writing.
+ */
+public class NioClientConnectionData extends ClientConnectionData {
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private ChatServerSocketListener listener;
+    private SelectionKey key;
+    private final int initialReadBufferBytes;
+    private final int maxFrameBytes;
+    private ByteBuffer readBuffer;
+    // Capacity of the buffer this connection owns, for memoryUsage().
+    private volatile int readBufferBytes;
+    // Frames taken off the outbound queue for one gathering write; the ones
+    // from writeOffset to writeCount haven't been fully written yet.
+    private final ByteBuffer[] writeBatch;
+    private final ArrayList<Frame> polled = new ArrayList<>();
+    private final ArrayList<Frame> packed = new ArrayList<>();
+    private int writeOffset;
+    private int writeCount;
+    private boolean backlogged;
+    private boolean closed;
+
+    public NioClientConnectionData(SocketChannel channel, NioEventLoop loop, String name, ServerConfig config) {
+        super(channel.socket(), null, null, name, config);
+        this.channel = channel;
+        this.loop = loop;
+        this.initialReadBufferBytes = Math.min(config.readBufferBytes, config.maxFrameBytes);
+        this.maxFrameBytes = config.maxFrameBytes;
+        this.writeBatch = new ByteBuffer[Math.max(1, config.writeBatchFrames)];
+    }
+
+    public void setListener(ChatServerSocketListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void sendFrame(Frame frame) {
+        if (!getOutbound().offer(frame)) {
+            Log.warn("Disconnecting slow client {}", getName());
+            abort();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    @Override
+    public long memoryUsage() {
+        return super.memoryUsage() + readBufferBytes;
+    }
+
+    @Override
+    public void abort() {
+        loop.execute(this::disconnect);
+    }
+
+    /**
+     * Sends whatever the socket will take without blocking, then closes it.
+     * Event loop thread only.
+     */
+    @Override
+    public void close() {
+        getOutbound().close();
+        try {
+            if (key != null) {
+                writePending();
+            }
+        } catch (IOException ex) {
+        }
+        clearWriteBatch();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    void register(Selector selector) throws ClosedChannelException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    boolean isBacklogged() {
+        return backlogged;
+    }
+
+    void setBacklogged(boolean backlogged) {
+        this.backlogged = backlogged;
+    }
+
+    /**
+     * Writes as many queued frames as the socket will take, and asks for
+     * OP_WRITE if some are left over. Event loop thread only.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (closed || key == null) {
+            return;
+        }
+        try {
+            if (writePending()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException ex) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Writes queued frames with gathering writes, up to a batch at a time, so a
+     * burst of frames queued during one loop pass costs a single system call.
+     *
+     * @return true if everything queued has been written
+     */
+    private boolean writePending() throws IOException {
+        while (true) {
+            if (writeOffset == writeCount) {
+                clearWriteBatch();
+                getOutbound().pollAll(polled, writeBatch.length);
+                if (polled.isEmpty()) {
+                    return true;
+                }
+                pack(polled, packed);
+                for (int i = 0; i < packed.size(); i++) {
+                    writeBatch[i] = packed.get(i).buffer();
+                }
+                writeCount = packed.size();
+                polled.clear();
+                packed.clear();
+            }
+            long writeStart = System.nanoTime();
+            channel.write(writeBatch, writeOffset, writeCount - writeOffset);
+            ServerMetrics.wrote(System.nanoTime() - writeStart);
+            int start = writeOffset;
+            while (writeOffset < writeCount && !writeBatch[writeOffset].hasRemaining()) {
+                writeBatch[writeOffset++] = null;
+            }
+            IoStats.wrote(writeOffset - start);
+            if (writeOffset < writeCount) {
+                return false;
+            }
+        }
+    }
+
+    private void clearWriteBatch() {
+        for (int i = writeOffset; i < writeCount; i++) {
+            writeBatch[i] = null;
+        }
+        writeOffset = 0;
+        writeCount = 0;
+    }
+
+    /**
+     * Reads whatever the socket has and handles up to {@code budget} frames.
+     * Event loop thread only.
+     *
+     * @return true if complete frames are still buffered because the budget
+     *         ran out
+     */
+    boolean read(int budget) {
+        if (readBuffer == null) {
+            readBuffer = loop.readScratch();
+            readBuffer.clear();
+        }
+        try {
+            IoStats.read();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                disconnect();
+                return false;
+            } else if (n > 0) {
+                setLastReadAt(System.nanoTime());
+            }
+        } catch (IOException ex) {
+            disconnect();
+            return false;
+        }
+        return drain(budget);
+    }
+
+    /**
+     * Handles up to {@code budget} frames that are already buffered. Event loop
+     * thread only.
+     *
+     * @return true if complete frames are still buffered because the budget
+     *         ran out
+     */
+    boolean drain(int budget) {
+        if (closed) {
+            readBuffer = null;
+            return false;
+        }
+        readBuffer.flip();
+        boolean more = false;
+        try {
+            int frames = 0;
+            while (!closed && readBuffer.remaining() >= MessageFrames.HEADER_LENGTH) {
+                int length = readBuffer.getInt(readBuffer.position());
+                checkFrameLength(length);
+                int frameLength = MessageFrames.HEADER_LENGTH + length;
+                if (readBuffer.remaining() < frameLength) {
+                    break;
+                }
+                if (frames == budget) {
+                    more = true;
+                    break;
+                }
+                int start = readBuffer.arrayOffset() + readBuffer.position() + MessageFrames.HEADER_LENGTH;
+                Message msg = MessageFrames.decodeFromClient(readBuffer.array(), start, length);
+                readBuffer.position(readBuffer.position() + frameLength);
+                frames++;
+                IoStats.decoded(1);
+                ServerMetrics.received(msg, frameLength);
+                setFrameBytes(frameLength);
+                if (!dispatch(msg)) {
+                    disconnect();
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            Log.warn("Dropping {}: {}", getName(), ex);
+            ServerMetrics.exception();
+            disconnect();
+        }
+        if (closed) {
+            readBuffer = null;
+            return false;
+        }
+        keepLeftovers();
+        return more;
+    }
+
+    /**
+     * Moves bytes that haven't been handled yet into a buffer of this
+     * connection's own, big enough for the frame they start. A connection with
+     * nothing buffered holds no buffer at all; it reads into the loop's shared
+     * scratch buffer until a frame arrives in pieces.
+     */
+    private void keepLeftovers() {
+        int leftover = readBuffer.remaining();
+        if (leftover == 0) {
+            readBuffer = null;
+            readBufferBytes = 0;
+            return;
+        }
+        int needed = initialReadBufferBytes;
+        if (leftover >= MessageFrames.HEADER_LENGTH) {
+            needed = Math.max(needed, MessageFrames.HEADER_LENGTH + readBuffer.getInt(readBuffer.position()));
+        }
+        if (readBuffer == loop.readScratch() || readBuffer.capacity() < needed) {
+            ByteBuffer own = ByteBuffer.allocate(needed);
+            own.put(readBuffer);
+            readBuffer = own;
+        } else {
+            readBuffer.compact();
+        }
+        readBufferBytes = readBuffer.capacity();
+    }
+
+    private void checkFrameLength(int length) throws IOException {
+        if (length < 0 || length > maxFrameBytes) {
+            throw new IOException("Bad frame length: " + length);
+        }
+    }
+
+    private boolean dispatch(Message msg) throws IOException {
+        if (getUserName() == null) {
+            if (!(msg instanceof MessageCtoS_Join)) {
+                throw new IOException("Expected a join message but got " + msg.getClass());
+            }
+            return listener.processJoinMessage((MessageCtoS_Join) msg);
+        }
+        return listener.processMessage(msg);
+    }
+
+    private void disconnect() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        listener.processDisconnect();
+    }
+}
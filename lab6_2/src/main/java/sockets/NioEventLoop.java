@@ -0,0 +1,158 @@
+package sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One selector thread serving many connections. Other threads talk to the
+ * loop only through {@link #execute(Runnable)}.
+ *
+ * Each connection may handle at most {@code readBudget} frames per pass. A
+ * connection that still has buffered frames afterwards goes to the back of the
+ * backlog, so a single chatty client can't starve the rest of the loop.
+ *
+ * Connections that haven't joined yet are also kept in accept order, so the
+ * loop can drop any that are still silent after the handshake timeout.
+ */
+public class NioEventLoop implements Runnable {
+    private static final long HANDSHAKE_CHECK_MILLIS = 1000;
+
+    private final Selector selector;
+    private final int readBudget;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<NioClientConnectionData> backlog = new ArrayDeque<>();
+    private final ArrayDeque<NioClientConnectionData> handshaking = new ArrayDeque<>();
+    private final long handshakeTimeoutNanos;
+    // Shared by every connection on this loop that has nothing buffered.
+    private final ByteBuffer readScratch;
+    private Thread thread;
+
+    public NioEventLoop(int readBudget, int readBufferBytes, int handshakeTimeoutMillis) throws IOException {
+        this.selector = Selector.open();
+        this.readBudget = readBudget;
+        this.handshakeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(handshakeTimeoutMillis);
+        this.readScratch = ByteBuffer.allocate(readBufferBytes);
+    }
+
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    ByteBuffer readScratch() {
+        return readScratch;
+    }
+
+    public void register(NioClientConnectionData client) {
+        execute(() -> {
+            try {
+                client.register(selector);
+                handshaking.add(client);
+            } catch (IOException ex) {
+                client.close();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // Tasks queued from this thread don't wake the selector.
+                if (!backlog.isEmpty() || !tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (!handshaking.isEmpty()) {
+                    selector.select(HANDSHAKE_CHECK_MILLIS);
+                } else {
+                    selector.select();
+                }
+                runTasks();
+                processSelectedKeys();
+                processBacklog();
+                expireHandshakes();
+            } catch (IOException ex) {
+                Log.error("Event loop caught exception: {}", ex, ex);
+                ServerMetrics.exception();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                Log.error("Event loop task failed: {}", ex, ex);
+                ServerMetrics.exception();
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            NioClientConnectionData client = (NioClientConnectionData) key.attachment();
+            if (key.isValid() && key.isWritable()) {
+                client.flush();
+            }
+            // A backlogged client already has frames waiting; leave the socket
+            // alone until those have been handled.
+            if (key.isValid() && key.isReadable() && !client.isBacklogged()) {
+                if (client.read(readBudget)) {
+                    client.setBacklogged(true);
+                    backlog.add(client);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops connections that haven't sent their join message within the
+     * handshake timeout. Connections are registered in accept order, so only
+     * the head of the queue ever needs checking.
+     */
+    private void expireHandshakes() {
+        long now = System.nanoTime();
+        NioClientConnectionData client;
+        while ((client = handshaking.peek()) != null) {
+            if (client.getUserName() != null || !client.isOpen()) {
+                handshaking.poll();
+            } else if (now - client.getAcceptedAt() >= handshakeTimeoutNanos) {
+                handshaking.poll();
+                AcceptMetrics.handshakeTimedOut();
+                Log.warn("Handshake timed out for {}", client.getName());
+                client.abort();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void processBacklog() {
+        for (int i = backlog.size(); i > 0; i--) {
+            NioClientConnectionData client = backlog.poll();
+            if (!client.drain(readBudget)) {
+                client.setBacklogged(false);
+            } else {
+                backlog.add(client);
+            }
+        }
+    }
+}
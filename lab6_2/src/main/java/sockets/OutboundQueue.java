@@ -0,0 +1,273 @@
+package sockets;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of frames waiting to be written to one client, bounded both in frames
+ * and in bytes. Any thread may offer frames; a single writer (a writer thread
+ * or the client's event loop) takes them off. When the queue is full the
+ * {@link SlowConsumerPolicy} decides what gives.
+ */
+public class OutboundQueue {
+    private static final LongAdder totalDropped = new LongAdder();
+    private static final LongAdder totalOverflows = new LongAdder();
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private final int limit;
+    private final long byteLimit;
+    private final SlowConsumerPolicy policy;
+    // A lock rather than a monitor, so a virtual thread waiting here doesn't
+    // pin its carrier thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile int depth;
+    private volatile long queuedBytes;
+    private int highWaterMark;
+    private long enqueued;
+    private long dropped;
+    private boolean closed;
+
+    public OutboundQueue(int limit, long byteLimit, SlowConsumerPolicy policy) {
+        this.limit = limit;
+        this.byteLimit = byteLimit;
+        this.policy = policy;
+    }
+
+    /**
+     * Queues a frame, applying the slow consumer policy if the queue is full.
+     *
+     * @return false if the client has overflowed its queue and should be
+     *         disconnected
+     */
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            while (isFull(frame)) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        remove(frames.poll());
+                        drop();
+                        break;
+                    case DROP_NON_CRITICAL:
+                        if (!frame.isCritical()) {
+                            drop();
+                            return true;
+                        }
+                        if (!removeOldestNonCritical()) {
+                            return overflow();
+                        }
+                        drop();
+                        break;
+                    default:
+                        return overflow();
+                }
+            }
+            frames.add(frame);
+            enqueued++;
+            depth = frames.size();
+            queuedBytes += frame.length();
+            highWaterMark = Math.max(highWaterMark, depth);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next frame, or null if the queue is empty
+     */
+    public Frame poll() {
+        lock.lock();
+        try {
+            return remove(frames.poll());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @return the next frame, or null once the queue has been closed and
+     *         drained
+     */
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return remove(frames.poll());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for at least one frame, then moves up to {@code max} queued frames
+     * into {@code batch}, so the writer can send them with a single flush.
+     *
+     * @return false once the queue has been closed and drained
+     */
+    public boolean takeAll(List<Frame> batch, int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return moveTo(batch, max) > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to {@code max} queued frames into {@code batch} without waiting.
+     *
+     * @return the number of frames moved
+     */
+    public int pollAll(List<Frame> batch, int max) {
+        lock.lock();
+        try {
+            return moveTo(batch, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int moveTo(List<Frame> batch, int max) {
+        int n = 0;
+        Frame frame;
+        while (n < max && (frame = remove(frames.poll())) != null) {
+            batch.add(frame);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Stops accepting frames. Frames already queued can still be taken, so a
+     * parting message like a denial still reaches the client.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue and throws away everything in it.
+     */
+    public void discard() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            depth = 0;
+            queuedBytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A single frame is always let into an empty queue, however big it is.
+    private boolean isFull(Frame frame) {
+        return !frames.isEmpty() && (frames.size() >= limit || queuedBytes + frame.length() > byteLimit);
+    }
+
+    private Frame remove(Frame frame) {
+        if (frame != null) {
+            depth = frames.size();
+            queuedBytes -= frame.length();
+        }
+        return frame;
+    }
+
+    private boolean removeOldestNonCritical() {
+        Iterator<Frame> it = frames.iterator();
+        while (it.hasNext()) {
+            Frame frame = it.next();
+            if (!frame.isCritical()) {
+                it.remove();
+                remove(frame);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drop() {
+        dropped++;
+        totalDropped.increment();
+    }
+
+    private boolean overflow() {
+        totalOverflows.increment();
+        discard();
+        return false;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public long queuedBytes() {
+        return queuedBytes;
+    }
+
+    public int highWaterMark() {
+        lock.lock();
+        try {
+            return highWaterMark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long enqueued() {
+        lock.lock();
+        try {
+            return enqueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frames dropped by all queues since the server started.
+     */
+    public static long totalDropped() {
+        return totalDropped.sum();
+    }
+
+    /**
+     * Clients disconnected for overflowing their queue since the server
+     * started.
+     */
+    public static long totalOverflows() {
+        return totalOverflows.sum();
+    }
+}
@@ -0,0 +1,130 @@
+package sockets;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outgoing half of the link to one peer node. Forwarded messages queue up
+ * here and the link's own thread writes them, reconnecting whenever the peer
+ * goes away. Anything forwarded while the peer is down is dropped; the peer
+ * gets the current user list again when the link comes back.
+ *
+ * Peers never write to this socket, so a read that returns means the peer
+ * has gone, even if nothing is waiting to be sent.
+ */
+public class PeerLink implements Runnable {
+    private static final long RETRY_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final ClusterNode cluster;
+    private final OutboundQueue queue;
+    private final int writeBatchFrames;
+    private volatile boolean connected;
+    private volatile Socket current;
+
+    PeerLink(String address, ClusterNode cluster, ServerConfig config) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected host:port but got " + address);
+        }
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+        this.cluster = cluster;
+        this.queue = new OutboundQueue(config.outboundQueueLimit, config.outboundQueueBytes,
+                SlowConsumerPolicy.DROP_OLDEST);
+        this.writeBatchFrames = config.writeBatchFrames;
+    }
+
+    void send(Frame frame) {
+        if (connected) {
+            queue.offer(frame);
+        }
+    }
+
+    /**
+     * Replaces anything still queued with {@code frames} and starts accepting
+     * forwarded messages.
+     */
+    void open(List<Frame> frames) {
+        clear();
+        for (Frame frame : frames) {
+            queue.offer(frame);
+        }
+        connected = true;
+    }
+
+    private void clear() {
+        ArrayList<Frame> stale = new ArrayList<>();
+        while (queue.pollAll(stale, writeBatchFrames) > 0) {
+            stale.clear();
+        }
+    }
+
+    @Override
+    public void run() {
+        Thread writer = Thread.currentThread();
+        boolean reported = false;
+        ArrayList<Frame> batch = new ArrayList<>(writeBatchFrames);
+        while (true) {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                current = socket;
+                Thread watcher = new Thread(() -> watch(socket, writer), "cluster-watch-" + this);
+                watcher.setDaemon(true);
+                watcher.start();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                MessageFrames.write(out, new MessageStoS_Hello(cluster.getNodeId()));
+                Log.info("Cluster link to {} is up", this);
+                reported = false;
+                cluster.sync(this);
+                while (queue.takeAll(batch, writeBatchFrames)) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).writeTo(out);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException ex) {
+                if (!reported) {
+                    Log.info("Cluster link to {} is down: {}", this, ex.getMessage());
+                    reported = true;
+                }
+            } catch (InterruptedException ex) {
+                Log.info("Cluster link to {} was closed by the peer", this);
+            }
+            current = null;
+            connected = false;
+            batch.clear();
+            clear();
+            try {
+                Thread.interrupted();
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    /**
+     * Waits for the peer to close the link, then wakes the writer so it
+     * reconnects.
+     */
+    private void watch(Socket socket, Thread writer) {
+        try {
+            while (socket.getInputStream().read() >= 0) {
+            }
+        } catch (IOException ex) {
+        }
+        if (current == socket) {
+            writer.interrupt();
+        }
+    }
+
+    public String toString() {
+        return host + ":" + port;
+    }
+}
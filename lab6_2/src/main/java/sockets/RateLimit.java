@@ -0,0 +1,77 @@
+package sockets;
+
+/**
+ * How fast one connection may send chats: a steady rate and a burst, both in
+ * messages and in bytes. Written on the command line as
+ * {@code messagesPerSecond:burstMessages:bytesPerSecond:burstBytes}, e.g.
+ * {@code --rate-limit=10:20:65536:262144}, or {@code off}.
+ */
+public class RateLimit {
+    public static final RateLimit OFF = new RateLimit(0, 0, 0, 0);
+
+    public final double messagesPerSecond;
+    public final long burstMessages;
+    public final double bytesPerSecond;
+    public final long burstBytes;
+
+    public RateLimit(double messagesPerSecond, long burstMessages, double bytesPerSecond, long burstBytes) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.burstMessages = burstMessages;
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+    }
+
+    public static RateLimit parse(String value) {
+        if (value.equals("off")) {
+            return OFF;
+        }
+        String[] parts = value.split(":");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException(
+                    "Expected messagesPerSecond:burstMessages:bytesPerSecond:burstBytes but got " + value);
+        }
+        return new RateLimit(Double.parseDouble(parts[0]), Long.parseLong(parts[1]), Double.parseDouble(parts[2]),
+                Long.parseLong(parts[3]));
+    }
+
+    /**
+     * A fresh pair of buckets for one connection. A rate of 0 means that
+     * side isn't limited.
+     */
+    public Limiter newLimiter() {
+        return new Limiter(messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, burstMessages) : null,
+                bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, burstBytes) : null);
+    }
+
+    public String toString() {
+        return this == OFF ? "off" : messagesPerSecond + ":" + burstMessages + ":" + bytesPerSecond + ":" + burstBytes;
+    }
+
+    /**
+     * One connection's buckets.
+     */
+    public static class Limiter {
+        private final TokenBucket messages;
+        private final TokenBucket bytes;
+
+        Limiter(TokenBucket messages, TokenBucket bytes) {
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Takes one message and {@code size} bytes. A message refused for its
+         * bytes has still used up its message token.
+         *
+         * @return 0 if the message may go through, otherwise nanoseconds
+         *         until it could, or {@link Long#MAX_VALUE} if it never could
+         */
+        public long take(int size) {
+            long wait = messages == null ? 0 : messages.take(1);
+            if (wait == 0 && bytes != null) {
+                wait = bytes.take(size);
+            }
+            return wait;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package sockets;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * A named broadcast group. Members are kept in an immutable array snapshot,
+ * like {@link ClientRegistry}'s, that only {@link RoomRegistry} replaces.
+ *
+ * Every room belongs to one shard executor, and all fan-out for the room runs
+ * there in order. A busy room keeps its own shard busy without delaying rooms
+ * on other shards or the thread that received the message.
+ */
+public class Room {
+    private static final ClientConnectionData[] EMPTY = new ClientConnectionData[0];
+
+    private final String name;
+    private final Executor shard;
+    private volatile ClientConnectionData[] members = EMPTY;
+
+    Room(String name, Executor shard) {
+        this.name = name;
+        this.shard = shard;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Members at the moment of the call. The array is never modified.
+     */
+    public ClientConnectionData[] members() {
+        return members;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * Sends a message to every member but {@code skipClient}, on the room's
+     * shard.
+     */
+    public void publish(Message m, ClientConnectionData skipClient) {
+        shard.execute(() -> fanOut(m, skipClient));
+    }
+
+    /**
+     * Sends a message to every member, and records how long it took from
+     * {@code receivedAt} ({@link System#nanoTime()}) until all of them had it
+     * queued.
+     */
+    public void publish(Message m, long receivedAt) {
+        shard.execute(() -> {
+            fanOut(m, null);
+            ServerMetrics.fannedOut(receivedAt);
+        });
+    }
+
+    /**
+     * Runs a task on the room's shard, after everything already published to
+     * the room.
+     */
+    void execute(Runnable task) {
+        shard.execute(task);
+    }
+
+    private void fanOut(Message m, ClientConnectionData skipClient) {
+        try {
+            Frame frame = Frame.of(m);
+            for (ClientConnectionData c : members) {
+                if (c != skipClient) {
+                    c.sendFrame(frame);
+                }
+            }
+        } catch (IOException ex) {
+            Log.error("Error publishing to room {}: {}", name, m, ex);
+            ServerMetrics.exception();
+        }
+    }
+
+    // Only called by RoomRegistry, which serializes changes to each room.
+    boolean add(ClientConnectionData client) {
+        ClientConnectionData[] current = members;
+        for (ClientConnectionData c : current) {
+            if (c == client) {
+                return false;
+            }
+        }
+        ClientConnectionData[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = client;
+        members = next;
+        return true;
+    }
+
+    boolean remove(ClientConnectionData client) {
+        ClientConnectionData[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == client) {
+                ClientConnectionData[] next = new ClientConnectionData[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                members = next;
+                return true;
+            }
+        }
+        return false;
+    }
+}
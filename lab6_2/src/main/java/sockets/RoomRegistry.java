@@ -0,0 +1,167 @@
+package sockets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Every room on the server, by name. Rooms are created when someone first
+ * joins them and removed when the last member leaves, except for the default
+ * room every user starts in.
+ *
+ * Changes to a room happen inside the map's compute methods, so a join and
+ * the removal of an empty room can never race.
+ */
+public class RoomRegistry {
+    public static final String DEFAULT_ROOM = "lobby";
+    public static final int MAX_NAME_LENGTH = 64;
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ExecutorService[] shards;
+    private HistoryLog history;
+
+    public RoomRegistry(int shardCount) {
+        shards = new ExecutorService[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            String threadName = "room-shard-" + i;
+            shards[i] = Executors.newFixedThreadPool(1, r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
+            ServerMetrics.monitor(threadName, shards[i]);
+        }
+        rooms.put(DEFAULT_ROOM, newRoom(DEFAULT_ROOM));
+    }
+
+    private Room newRoom(String name) {
+        return new Room(name, shards[Math.floorMod(name.hashCode(), shards.length)]);
+    }
+
+    public void setHistory(HistoryLog history) {
+        this.history = history;
+    }
+
+    public HistoryLog getHistory() {
+        return history;
+    }
+
+    /**
+     * Runs a server-wide announcement, such as a welcome, exit or kick, on
+     * the default room's shard, so everyone in that room gets it in order
+     * with the room's chat.
+     */
+    public void announce(Runnable broadcast) {
+        rooms.get(DEFAULT_ROOM).execute(broadcast);
+    }
+
+    public static boolean isValidName(String name) {
+        return name != null && !name.trim().isEmpty() && name.equals(name.trim())
+                && name.length() <= MAX_NAME_LENGTH;
+    }
+
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Sends a public chat message to the members of its room and records it
+     * in the history log. {@code receivedAt} is the {@link System#nanoTime()}
+     * the message arrived at, for the fan-out latency metric.
+     *
+     * @return false if the room doesn't exist
+     */
+    public boolean publishChat(MessageStoC_Chat chat, long receivedAt) {
+        Room room = rooms.get(chat.room == null ? DEFAULT_ROOM : chat.room);
+        if (room == null) {
+            return false;
+        }
+        room.publish(chat, receivedAt);
+        if (history != null) {
+            history.append(chat);
+        }
+        return true;
+    }
+
+    /**
+     * Sends a new member of the room its recent messages, if there are any.
+     */
+    public void sendHistory(String name, ClientConnectionData client) {
+        if (history == null) {
+            return;
+        }
+        MessageStoC_History recent = history.replay(name);
+        if (recent.messages.isEmpty()) {
+            return;
+        }
+        try {
+            client.send(recent);
+        } catch (IOException ex) {
+            Log.error("Error sending history to {}", client.getUserName(), ex);
+            ServerMetrics.exception();
+        }
+    }
+
+    /**
+     * Adds the client to the room, creating the room if need be.
+     *
+     * @return the room, or null if the client was already in it
+     */
+    public Room join(String name, ClientConnectionData client) {
+        Room[] joined = new Room[1];
+        rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = newRoom(key);
+            }
+            if (room.add(client)) {
+                client.getRooms().add(key);
+                joined[0] = room;
+            }
+            return room;
+        });
+        return joined[0];
+    }
+
+    /**
+     * Takes the client out of the room, removing the room if it is now empty.
+     *
+     * @return the room, or null if the client wasn't in it
+     */
+    public Room leave(String name, ClientConnectionData client) {
+        Room[] left = new Room[1];
+        rooms.computeIfPresent(name, (key, room) -> {
+            if (room.remove(client)) {
+                client.getRooms().remove(key);
+                left[0] = room;
+            }
+            return room.size() == 0 && !key.equals(DEFAULT_ROOM) ? null : room;
+        });
+        return left[0];
+    }
+
+    /**
+     * Takes a disconnecting client out of every room it is in.
+     */
+    public void leaveAll(ClientConnectionData client) {
+        for (String name : client.getRooms()) {
+            leave(name, client);
+        }
+    }
+
+    public MessageStoC_RoomList list() {
+        ArrayList<String> names = new ArrayList<>(rooms.keySet());
+        names.sort(String::compareToIgnoreCase);
+        ArrayList<String> listed = new ArrayList<>(names.size());
+        ArrayList<Integer> members = new ArrayList<>(names.size());
+        for (String name : names) {
+            Room room = rooms.get(name);
+            if (room != null) {
+                listed.add(name);
+                members.add(room.size());
+            }
+        }
+        return new MessageStoC_RoomList(listed, members);
+    }
+}
@@ -0,0 +1,192 @@
+package sockets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line options for {@link ChatServer}. Options are passed as
+ * {@code --name=value}, e.g. {@code --mode=nio --loops=4}.
+ */
+public class ServerConfig {
+    public enum Mode {
+        POOL, VIRTUAL, NIO
+    }
+
+    public int port = ChatServer.PORT;
+    public Mode mode = Mode.POOL;
+    public int poolThreads = 100;
+    public int eventLoops = Runtime.getRuntime().availableProcessors();
+    public int readBudgetFrames = 16;
+    public int readBufferBytes = 16 * 1024;
+    public int roomShards = Runtime.getRuntime().availableProcessors();
+    public int acceptBacklog = 4096;
+    public int handshakeThreads = 8;
+    public int handshakeTimeoutMillis = 10000;
+    public int pingIntervalMillis = 15000;
+    public int idleTimeoutMillis = 45000;
+    public boolean reverseDns = false;
+    public int ioBufferBytes = 8 * 1024;
+    public int writeBatchFrames = 64;
+    public int compressThresholdBytes = 1024;
+    public RateLimit rateLimit = new RateLimit(10, 20, 64 * 1024, 256 * 1024);
+    public RateLimit moderatorRateLimit = new RateLimit(100, 200, 1024 * 1024, 4 * 1024 * 1024);
+    public String nodeId;
+    public int clusterPort = 0;
+    public List<String> peers = new ArrayList<>();
+    // Null unless the history log was asked for.
+    public String historyDir;
+    public int historySegmentBytes = 16 * 1024 * 1024;
+    public int historySegments = 8;
+    public int historyCommitMillis = 50;
+    public int historyQueue = 64 * 1024;
+    public int historyReplayMessages = 50;
+    public int historyReplayMinutes = 60;
+    public int searchThreads = 2;
+    public int metricsIntervalSeconds = 60;
+    public Log.Level logLevel = Log.Level.INFO;
+    public int logSampleRate = 100;
+    public int maxFrameBytes = MessageFrames.MAX_FRAME_LENGTH;
+    public int outboundQueueLimit = 1024;
+    public int outboundQueueBytes = 4 * 1024 * 1024;
+    public SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_NON_CRITICAL;
+
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            config.set(name, value);
+        }
+        if (config.nodeId == null) {
+            config.nodeId = "node-" + config.port;
+        }
+        return config;
+    }
+
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundQueueLimit, outboundQueueBytes, slowConsumerPolicy);
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "mode":
+                mode = Mode.valueOf(value.toUpperCase());
+                break;
+            case "pool-threads":
+                poolThreads = Integer.parseInt(value);
+                break;
+            case "loops":
+                eventLoops = Integer.parseInt(value);
+                break;
+            case "read-budget":
+                readBudgetFrames = Integer.parseInt(value);
+                break;
+            case "read-buffer":
+                readBufferBytes = Integer.parseInt(value);
+                break;
+            case "room-shards":
+                roomShards = Integer.parseInt(value);
+                break;
+            case "backlog":
+                acceptBacklog = Integer.parseInt(value);
+                break;
+            case "handshake-threads":
+                handshakeThreads = Integer.parseInt(value);
+                break;
+            case "handshake-timeout":
+                handshakeTimeoutMillis = Integer.parseInt(value);
+                break;
+            case "ping-interval":
+                pingIntervalMillis = Integer.parseInt(value);
+                break;
+            case "idle-timeout":
+                idleTimeoutMillis = Integer.parseInt(value);
+                break;
+            case "reverse-dns":
+                reverseDns = Boolean.parseBoolean(value);
+                break;
+            case "io-buffer":
+                ioBufferBytes = Integer.parseInt(value);
+                break;
+            case "write-batch":
+                writeBatchFrames = Integer.parseInt(value);
+                break;
+            case "compress-threshold":
+                compressThresholdBytes = Integer.parseInt(value);
+                break;
+            case "rate-limit":
+                rateLimit = RateLimit.parse(value);
+                break;
+            case "moderator-rate-limit":
+                moderatorRateLimit = RateLimit.parse(value);
+                break;
+            case "node-id":
+                nodeId = value;
+                break;
+            case "cluster-port":
+                clusterPort = Integer.parseInt(value);
+                break;
+            case "peers":
+                peers = new ArrayList<>();
+                for (String peer : value.split(",")) {
+                    if (!peer.trim().isEmpty()) {
+                        peers.add(peer.trim());
+                    }
+                }
+                break;
+            case "history-dir":
+                historyDir = value.trim().isEmpty() ? null : value;
+                break;
+            case "history-segment":
+                historySegmentBytes = Integer.parseInt(value);
+                break;
+            case "history-segments":
+                historySegments = Integer.parseInt(value);
+                break;
+            case "history-commit":
+                historyCommitMillis = Integer.parseInt(value);
+                break;
+            case "history-queue":
+                historyQueue = Integer.parseInt(value);
+                break;
+            case "history-replay":
+                historyReplayMessages = Integer.parseInt(value);
+                break;
+            case "history-replay-minutes":
+                historyReplayMinutes = Integer.parseInt(value);
+                break;
+            case "search-threads":
+                searchThreads = Integer.parseInt(value);
+                break;
+            case "metrics-interval":
+                metricsIntervalSeconds = Integer.parseInt(value);
+                break;
+            case "log-level":
+                logLevel = Log.Level.valueOf(value.toUpperCase());
+                break;
+            case "log-sample":
+                logSampleRate = Integer.parseInt(value);
+                break;
+            case "max-frame":
+                maxFrameBytes = Math.min(Integer.parseInt(value), MessageFrames.MAX_FRAME_LENGTH);
+                break;
+            case "queue-bytes":
+                outboundQueueBytes = Integer.parseInt(value);
+                break;
+            case "queue-limit":
+                outboundQueueLimit = Integer.parseInt(value);
+                break;
+            case "slow-consumer":
+                slowConsumerPolicy = SlowConsumerPolicy.valueOf(value.replace('-', '_').toUpperCase());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+}
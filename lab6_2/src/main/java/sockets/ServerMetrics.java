@@ -0,0 +1,389 @@
+package sockets;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Server-wide counters, latency histograms and gauges. They are published as
+ * the MXBean {@code sockets:type=ServerMetrics} and printed every
+ * {@code --metrics-interval} seconds.
+ *
+ * Recording is a {@link LongAdder} increment or a {@link Histogram} record,
+ * cheap enough to leave on under load. Gauges such as queue depths walk the
+ * connections only when someone reads them.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    public static final String OBJECT_NAME = "sockets:type=ServerMetrics";
+
+    private static final ConcurrentHashMap<String, LongAdder> inByType = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> outByType = new ConcurrentHashMap<>();
+    // Per-class counters, so counting a message never hashes its name.
+    private static final ClassValue<LongAdder> in = new ClassValue<LongAdder>() {
+        @Override
+        protected LongAdder computeValue(Class<?> type) {
+            return inByType.computeIfAbsent(type.getSimpleName(), name -> new LongAdder());
+        }
+    };
+    private static final ClassValue<LongAdder> out = new ClassValue<LongAdder>() {
+        @Override
+        protected LongAdder computeValue(Class<?> type) {
+            return outByType.computeIfAbsent(type.getSimpleName(), name -> new LongAdder());
+        }
+    };
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder compressedFrames = new LongAdder();
+    private static final LongAdder compressionSaved = new LongAdder();
+    private static final LongAdder disconnects = new LongAdder();
+    private static final LongAdder kicks = new LongAdder();
+    private static final LongAdder reaped = new LongAdder();
+    private static final LongAdder throttled = new LongAdder();
+    private static final LongAdder exceptions = new LongAdder();
+
+    // Latencies are recorded in nanoseconds into the current interval, which
+    // each snapshot moves into the totals.
+    private static final Histogram fanOut = new Histogram();
+    private static final Histogram fanOutTotal = new Histogram();
+    private static final Histogram writeTime = new Histogram();
+    private static final Histogram writeTimeTotal = new Histogram();
+
+    private static final ConcurrentHashMap<String, ThreadPoolExecutor> pools = new ConcurrentHashMap<>();
+
+    private final ClientRegistry clients;
+
+    public ServerMetrics(ClientRegistry clients) {
+        this.clients = clients;
+    }
+
+    /**
+     * Registers the MXBean and starts printing a snapshot every
+     * {@code --metrics-interval} seconds, if that is more than 0.
+     */
+    public static ServerMetrics start(ServerConfig config, ClientRegistry clients) {
+        ServerMetrics metrics = new ServerMetrics(clients);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            Log.warn("Couldn't register {}: {}", OBJECT_NAME, ex);
+        }
+        if (config.metricsIntervalSeconds > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-report");
+                t.setDaemon(true);
+                return t;
+            });
+            reporter.scheduleAtFixedRate(() -> Log.info(metrics.snapshot()),
+                    config.metricsIntervalSeconds, config.metricsIntervalSeconds, TimeUnit.SECONDS);
+        }
+        return metrics;
+    }
+
+    /**
+     * Adds a pool to the utilization and queue depth gauges. Pools that
+     * aren't {@link ThreadPoolExecutor}s, such as virtual threads, are
+     * ignored.
+     */
+    public static void monitor(String name, ExecutorService pool) {
+        if (pool instanceof ThreadPoolExecutor) {
+            pools.put(name, (ThreadPoolExecutor) pool);
+        }
+    }
+
+    public static void received(Message m, int bytes) {
+        in.get(m.getClass()).increment();
+        bytesIn.add(bytes);
+    }
+
+    public static void sent(Frame frame) {
+        out.get(frame.type()).increment();
+        bytesOut.add(frame.length());
+    }
+
+    /**
+     * Records frames that were counted by {@link #sent(Frame)} going out as
+     * one compressed frame instead, so bytes out stay what was written.
+     */
+    public static void compressed(Frame batch, int rawBytes) {
+        compressedFrames.increment();
+        compressionSaved.add(rawBytes - batch.length());
+        bytesOut.add(batch.length() - rawBytes);
+    }
+
+    /**
+     * Records a chat, received at {@code receivedAt} ({@link System#nanoTime()}),
+     * having been queued for all its recipients.
+     */
+    public static void fannedOut(long receivedAt) {
+        fanOut.record(System.nanoTime() - receivedAt);
+    }
+
+    public static void wrote(long nanos) {
+        writeTime.record(nanos);
+    }
+
+    public static void disconnected() {
+        disconnects.increment();
+    }
+
+    public static void kicked() {
+        kicks.increment();
+    }
+
+    /**
+     * Counts a connection dropped for staying silent past the idle timeout.
+     */
+    public static void reaped() {
+        reaped.increment();
+    }
+
+    /**
+     * Counts a chat dropped for going over its sender's rate limit.
+     */
+    public static void throttled() {
+        throttled.increment();
+    }
+
+    public static void exception() {
+        exceptions.increment();
+    }
+
+    private static long sum(Map<String, LongAdder> counters) {
+        long total = 0;
+        for (LongAdder counter : counters.values()) {
+            total += counter.sum();
+        }
+        return total;
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+        TreeMap<String, Long> sums = new TreeMap<>();
+        counters.forEach((name, counter) -> sums.put(name, counter.sum()));
+        return sums;
+    }
+
+    private static Histogram total(Histogram interval, Histogram total) {
+        Histogram merged = new Histogram();
+        merged.add(total);
+        merged.add(interval);
+        return merged;
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return clients.connectionCount();
+    }
+
+    @Override
+    public int getJoinedClients() {
+        return clients.snapshot().length;
+    }
+
+    @Override
+    public long getConnects() {
+        return AcceptMetrics.acceptedCount();
+    }
+
+    @Override
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public long getKicks() {
+        return kicks.sum();
+    }
+
+    @Override
+    public long getIdleReaped() {
+        return reaped.sum();
+    }
+
+    @Override
+    public long getThrottledChats() {
+        return throttled.sum();
+    }
+
+    @Override
+    public long getExceptions() {
+        return exceptions.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return sum(inByType);
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return sum(outByType);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesInByType() {
+        return sums(inByType);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesOutByType() {
+        return sums(outByType);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getCompressedFrames() {
+        return compressedFrames.sum();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compressionSaved.sum();
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        int depth = 0;
+        for (ClientConnectionData c : clients.connections()) {
+            depth += c.getOutbound().depth();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getMaxOutboundQueueDepth() {
+        int max = 0;
+        for (ClientConnectionData c : clients.connections()) {
+            max = Math.max(max, c.getOutbound().depth());
+        }
+        return max;
+    }
+
+    @Override
+    public long getOutboundQueuedBytes() {
+        long bytes = 0;
+        for (ClientConnectionData c : clients.connections()) {
+            bytes += c.getOutbound().queuedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<String, Double> getPoolUtilization() {
+        TreeMap<String, Double> utilization = new TreeMap<>();
+        pools.forEach((name, pool) -> {
+            int size = Math.max(1, pool.getMaximumPoolSize() == Integer.MAX_VALUE ? pool.getPoolSize()
+                    : pool.getMaximumPoolSize());
+            utilization.put(name, pool.getActiveCount() / (double) size);
+        });
+        return utilization;
+    }
+
+    @Override
+    public Map<String, Integer> getPoolQueueDepths() {
+        TreeMap<String, Integer> depths = new TreeMap<>();
+        pools.forEach((name, pool) -> depths.put(name, pool.getQueue().size()));
+        return depths;
+    }
+
+    @Override
+    public Latency getFanOutLatency() {
+        return new Latency(total(fanOut, fanOutTotal));
+    }
+
+    @Override
+    public Latency getWriteTime() {
+        return new Latency(total(writeTime, writeTimeTotal));
+    }
+
+    /**
+     * Counters since the server started, gauges as of now and latencies over
+     * the interval since the last snapshot.
+     */
+    public String snapshot() {
+        Histogram fanOutInterval = fanOut.drain();
+        fanOutTotal.add(fanOutInterval);
+        Histogram writeInterval = writeTime.drain();
+        writeTimeTotal.add(writeInterval);
+        StringBuilder poolText = new StringBuilder();
+        Map<String, Integer> queued = getPoolQueueDepths();
+        getPoolUtilization().forEach((name, busy) -> poolText.append(String.format(", %s %.0f%% busy %d queued",
+                name, busy * 100, queued.get(name))));
+        return String.format("Metrics: %d connected, %d joined, %d connects, %d disconnects, %d kicks, "
+                + "%d idle reaped, %d throttled chats, %d exceptions; in %d messages %d bytes, out %d messages "
+                + "%d bytes (%d compressed frames saved %d bytes); outbound queues %d frames (max %d); fan-out %s; "
+                + "writes %s%s", getConnectedClients(), getJoinedClients(), getConnects(), getDisconnects(),
+                getKicks(), getIdleReaped(), getThrottledChats(), getExceptions(), getMessagesIn(), getBytesIn(),
+                getMessagesOut(), getBytesOut(), getCompressedFrames(), getCompressionSavedBytes(),
+                getOutboundQueueDepth(), getMaxOutboundQueueDepth(), new Latency(fanOutInterval),
+                new Latency(writeInterval), poolText);
+    }
+
+    /**
+     * Percentiles of a latency histogram, in microseconds.
+     */
+    public static class Latency {
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p99;
+        private final double p999;
+        private final double max;
+
+        Latency(Histogram h) {
+            count = h.count();
+            mean = h.mean() / 1000;
+            p50 = h.percentile(50) / 1000.0;
+            p99 = h.percentile(99) / 1000.0;
+            p999 = h.percentile(99.9) / 1000.0;
+            max = h.max() / 1000.0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return mean;
+        }
+
+        public double getP50Micros() {
+            return p50;
+        }
+
+        public double getP99Micros() {
+            return p99;
+        }
+
+        public double getP999Micros() {
+            return p999;
+        }
+
+        public double getMaxMicros() {
+            return max;
+        }
+
+        public String toString() {
+            return String.format("p50 %.1f us p99 %.1f us p999 %.1f us max %.1f us over %d", p50, p99, p999, max,
+                    count);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package sockets;
+
+import java.util.Map;
+
+/**
+ * The server's metrics as seen over JMX, e.g. in JConsole under
+ * {@code sockets:type=ServerMetrics}. Counters are totals since the server
+ * started; gauges are worked out when they are read.
+ */
+public interface ServerMetricsMXBean {
+    int getConnectedClients();
+
+    int getJoinedClients();
+
+    long getConnects();
+
+    long getDisconnects();
+
+    long getKicks();
+
+    /**
+     * Connections dropped for sending nothing, not even a pong, for the idle
+     * timeout.
+     */
+    long getIdleReaped();
+
+    /**
+     * Chats dropped because their sender went over its rate limit.
+     */
+    long getThrottledChats();
+
+    long getExceptions();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    Map<String, Long> getMessagesInByType();
+
+    Map<String, Long> getMessagesOutByType();
+
+    long getBytesIn();
+
+    /**
+     * Bytes written to clients, after compression.
+     */
+    long getBytesOut();
+
+    long getCompressedFrames();
+
+    /**
+     * Bytes compression kept off the wire.
+     */
+    long getCompressionSavedBytes();
+
+    int getOutboundQueueDepth();
+
+    int getMaxOutboundQueueDepth();
+
+    long getOutboundQueuedBytes();
+
+    /**
+     * Busy threads as a fraction of each monitored pool's size.
+     */
+    Map<String, Double> getPoolUtilization();
+
+    Map<String, Integer> getPoolQueueDepths();
+
+    /**
+     * From a chat being received to it being queued for every recipient.
+     */
+    ServerMetrics.Latency getFanOutLatency();
+
+    /**
+     * Time spent writing each batch of frames to a client's socket.
+     */
+    ServerMetrics.Latency getWriteTime();
+}
@@ -0,0 +1,16 @@
+package sockets;
+
+/**
+ * What a connection does when its outbound queue is full.
+ */
+public enum SlowConsumerPolicy {
+    /** Drop the oldest queued frame to make room. */
+    DROP_OLDEST,
+    /**
+     * Drop chat frames, keeping presence and control frames. The client is
+     * disconnected only if the queue is full of frames that can't be dropped.
+     */
+    DROP_NON_CRITICAL,
+    /** Disconnect the client. */
+    DISCONNECT
+}
@@ -0,0 +1,49 @@
+package sockets;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket. Rather than a token count and a refill time, it
+ * keeps the single time at which the bucket will next be full again (the
+ * generic cell rate algorithm), so taking tokens is one compare-and-set on
+ * one long and nothing ever needs to refill it.
+ */
+public class TokenBucket {
+    // Time it takes to earn one token, and the most time that may be
+    // borrowed ahead, i.e. the burst.
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    public TokenBucket(double tokensPerSecond, long burst) {
+        this.nanosPerToken = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / tokensPerSecond));
+        this.burstNanos = burst > Long.MAX_VALUE / nanosPerToken ? Long.MAX_VALUE : burst * nanosPerToken;
+    }
+
+    /**
+     * Takes {@code tokens} if the bucket holds that many.
+     *
+     * @return 0 if they were taken, otherwise how many nanoseconds until they
+     *         could be, or {@link Long#MAX_VALUE} if the burst is smaller than
+     *         {@code tokens}
+     */
+    public long take(long tokens) {
+        long cost = tokens > Long.MAX_VALUE / nanosPerToken ? Long.MAX_VALUE : tokens * nanosPerToken;
+        if (cost > burstNanos) {
+            return Long.MAX_VALUE;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            long wait = next - now - burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+}